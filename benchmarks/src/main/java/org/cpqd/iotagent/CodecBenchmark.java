@@ -0,0 +1,67 @@
+package org.cpqd.iotagent;
+
+import org.eclipse.leshan.core.model.ResourceModel;
+import org.eclipse.leshan.core.node.LwM2mObjectInstance;
+import org.eclipse.leshan.core.node.LwM2mResource;
+import org.eclipse.leshan.core.node.LwM2mSingleResource;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+  ValueCodec on a single resource (notification), an object instance (read) and an actuation value (write)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+
+    private LwM2mSingleResource resource;
+    private LwM2mObjectInstance instance;
+    private Object actuation;
+
+    @Setup
+    public void setup() {
+        // Temperature sensor 3303/0
+        resource = LwM2mSingleResource.newFloatResource(5700, 21.5);
+        instance = new LwM2mObjectInstance(0, new LwM2mResource[]{
+                resource,
+                LwM2mSingleResource.newFloatResource(5601, 18.0),
+                LwM2mSingleResource.newFloatResource(5602, 27.25),
+                LwM2mSingleResource.newStringResource(5701, "Cel"),
+                LwM2mSingleResource.newStringResource(5750, "greenhouse")});
+        actuation = new JSONObject("{\"setpoint\": 22.5}").get("setpoint");
+    }
+
+    @Benchmark
+    public Object encodeResource() {
+        return ValueCodec.toJson(resource);
+    }
+
+    @Benchmark
+    public JSONObject encodeInstance() {
+        JSONObject payload = new JSONObject();
+        for (LwM2mResource r : instance.getResources().values()) {
+            payload.put(String.valueOf(r.getId()), ValueCodec.toJson(r));
+        }
+        return payload;
+    }
+
+    @Benchmark
+    public Object decodeActuation() {
+        return ValueCodec.fromJson(ResourceModel.Type.FLOAT, actuation);
+    }
+}
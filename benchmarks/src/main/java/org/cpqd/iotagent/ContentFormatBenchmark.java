@@ -0,0 +1,70 @@
+package org.cpqd.iotagent;
+
+import org.eclipse.leshan.core.model.LwM2mModel;
+import org.eclipse.leshan.core.model.ObjectLoader;
+import org.eclipse.leshan.core.model.StaticModel;
+import org.eclipse.leshan.core.node.LwM2mNode;
+import org.eclipse.leshan.core.node.LwM2mPath;
+import org.eclipse.leshan.core.node.LwM2mSingleResource;
+import org.eclipse.leshan.core.node.codec.DefaultLwM2mNodeDecoder;
+import org.eclipse.leshan.core.node.codec.DefaultLwM2mNodeEncoder;
+import org.eclipse.leshan.core.node.codec.LwM2mNodeDecoder;
+import org.eclipse.leshan.core.request.ContentFormat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+  Decode cost of one notification (temperature 3303/0/5700) per content format,
+  Leshan default decoder against FastNodeDecoder
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ContentFormatBenchmark {
+
+    @Param({"TEXT", "TLV", "JSON"})
+    public String format;
+
+    private LwM2mModel model;
+    private LwM2mPath path;
+    private ContentFormat contentFormat;
+    private byte[] payload;
+    private LwM2mNodeDecoder defaultDecoder;
+    private LwM2mNodeDecoder fastDecoder;
+
+    @Setup
+    public void setup() {
+        model = new StaticModel(ObjectLoader.loadDefault());
+        path = new LwM2mPath(3303, 0, 5700);
+        contentFormat = format.equals("TEXT") ? ContentFormat.TEXT
+                : format.equals("TLV") ? ContentFormat.TLV : ContentFormat.JSON;
+        payload = new DefaultLwM2mNodeEncoder().encode(LwM2mSingleResource.newFloatResource(5700, 21.5),
+                contentFormat, path, model);
+        defaultDecoder = new DefaultLwM2mNodeDecoder();
+        fastDecoder = new FastNodeDecoder();
+    }
+
+    @Benchmark
+    public LwM2mNode defaultDecoder() {
+        return defaultDecoder.decode(payload, contentFormat, path, model);
+    }
+
+    @Benchmark
+    public LwM2mNode fastDecoder() {
+        return fastDecoder.decode(payload, contentFormat, path, model);
+    }
+}
@@ -0,0 +1,56 @@
+package org.cpqd.iotagent;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+  Cost of decoding the kafka events handled by LwM2mAgent, payloads taken from example.txt
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DeviceEventBenchmark {
+
+    @Param({"create", "configure", "template.update"})
+    public String event;
+
+    private String raw;
+    private JSONObject message;
+
+    @Setup
+    public void setup() {
+        raw = Fixtures.load("/events/" + event.replace('.', '_') + ".json");
+        message = new JSONObject(raw);
+    }
+
+    /**
+     * What the callbacks pay, the kafka Manager already hands over a JSONObject
+     */
+    @Benchmark
+    public DeviceEvent decode() {
+        return DeviceEvent.decode(event, message);
+    }
+
+    /**
+     * Full cost including the Manager parsing the record value
+     */
+    @Benchmark
+    public DeviceEvent parseAndDecode() {
+        return DeviceEvent.decode(event, new JSONObject(raw));
+    }
+}
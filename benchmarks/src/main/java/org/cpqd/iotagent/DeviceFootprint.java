@@ -0,0 +1,142 @@
+package org.cpqd.iotagent;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.function.Supplier;
+
+/*
+  Heap used per device, with and without template deduplication.
+      java -cp target/benchmarks.jar org.cpqd.iotagent.DeviceFootprint [devices]
+
+  "baseline" is how devices were stored originally: a private LinkedList of attributes holding every field
+  as a String, the path being parsed into an Integer[] on each use. "per-device" keeps a private list of
+  the current (enum based) DeviceAttribute, "template" builds Device objects through the TemplateRegistry.
+ */
+public class DeviceFootprint {
+
+    // Attribute as first stored by the agent, before the compact model
+    static class LegacyAttribute {
+        String label;
+        String type;
+        String valueType;
+        String staticValue;
+        String path;
+        String templateId;
+
+        LegacyAttribute(JSONObject json) {
+            label = json.getString("label");
+            type = json.getString("type");
+            valueType = json.getString("value_type");
+            templateId = json.optString("template_id", null);
+            if (type.equals("static")) {
+                staticValue = json.get("static_value").toString();
+            }
+            path = "";
+            JSONArray metadata = json.optJSONArray("metadata");
+            for (int i = 0; metadata != null && i < metadata.length(); i++) {
+                if (metadata.getJSONObject(i).getString("type").equals("lwm2m")) {
+                    path = metadata.getJSONObject(i).getString("static_value");
+                }
+            }
+        }
+    }
+
+    static class LegacyDevice {
+        String label;
+        String deviceId;
+        LinkedList<LegacyAttribute> attributes = new LinkedList<>();
+    }
+
+    public static void main(String[] args) {
+        int devices = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        JSONObject data = new JSONObject(Fixtures.load("/events/create.json")).getJSONObject("data");
+
+        long baseline = measure(devices, () -> {
+            List<Object> fleet = new ArrayList<>(devices);
+            for (int i = 0; i < devices; i++) {
+                JSONObject device = synthetic(data, i);
+                LegacyDevice legacy = new LegacyDevice();
+                legacy.label = device.getString("label");
+                legacy.deviceId = device.get("id").toString();
+                JSONObject groups = device.getJSONObject("attrs");
+                for (String templateId : groups.keySet()) {
+                    JSONArray template = groups.getJSONArray(templateId);
+                    for (int j = 0; j < template.length(); j++) {
+                        legacy.attributes.add(new LegacyAttribute(template.getJSONObject(j)));
+                    }
+                }
+                fleet.add(legacy);
+            }
+            return fleet;
+        });
+
+        long perDevice = measure(devices, () -> {
+            List<Object> fleet = new ArrayList<>(devices);
+            for (int i = 0; i < devices; i++) {
+                JSONObject device = synthetic(data, i);
+                LinkedList<DeviceAttribute> attrs = new LinkedList<>();
+                JSONObject groups = device.getJSONObject("attrs");
+                for (String templateId : groups.keySet()) {
+                    JSONArray template = groups.getJSONArray(templateId);
+                    for (int j = 0; j < template.length(); j++) {
+                        attrs.add(new DeviceAttribute(template.getJSONObject(j)));
+                    }
+                }
+                fleet.add(attrs);
+            }
+            return fleet;
+        });
+
+        long shared = measure(devices, () -> {
+            List<Object> fleet = new ArrayList<>(devices);
+            for (int i = 0; i < devices; i++) {
+                fleet.add(new Device(synthetic(data, i)));
+            }
+            return fleet;
+        });
+
+        System.out.println(String.format("devices: %d", devices));
+        System.out.println(String.format("baseline (strings):    %d bytes/device", baseline));
+        System.out.println(String.format("per-device attributes: %d bytes/device", perDevice));
+        System.out.println(String.format("template registry:     %d bytes/device", shared));
+    }
+
+    /**
+     * Same template for every device, each with its own id and serial number
+     */
+    private static JSONObject synthetic(JSONObject data, int i) {
+        JSONObject device = new JSONObject(data.toString());
+        device.put("id", Integer.toHexString(i));
+        JSONArray attrs = device.getJSONObject("attrs").getJSONArray("52");
+        attrs.put(new JSONObject()
+                .put("label", "serial_number")
+                .put("type", "static")
+                .put("value_type", "string")
+                .put("template_id", "52")
+                .put("static_value", String.format("SN%08d", i)));
+        return device;
+    }
+
+    private static long measure(int devices, Supplier<Object> build) {
+        long before = usedHeap();
+        Object fleet = build.get();
+        long after = usedHeap();
+        if (fleet.hashCode() == 42) {
+            // keep the fleet reachable until measured
+            System.out.print("");
+        }
+        return (after - before) / devices;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
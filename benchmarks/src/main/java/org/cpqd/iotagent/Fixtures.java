@@ -0,0 +1,42 @@
+package org.cpqd.iotagent;
+
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/*
+  Loads benchmark payloads from the classpath
+ */
+public class Fixtures {
+
+    public static String load(String resource) {
+        try (InputStream in = Fixtures.class.getResourceAsStream(resource)) {
+            if (in == null) {
+                throw new IllegalArgumentException("Missing fixture " + resource);
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int r;
+            while ((r = in.read(buffer)) != -1) {
+                out.write(buffer, 0, r);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Device-manager device built from one of the templates in client/models
+     */
+    public static JSONObject device(String model, String deviceId) {
+        JSONObject template = new JSONObject(load("/models/" + model + ".json"));
+        return new JSONObject()
+                .put("id", deviceId)
+                .put("label", template.getString("label"))
+                .put("attrs", new JSONObject().put(model, template.getJSONArray("attrs")));
+    }
+}
@@ -0,0 +1,73 @@
+package org.cpqd.iotagent;
+
+import org.eclipse.leshan.core.model.ObjectLoader;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+  Mapping between dojot attributes and lwm2m paths, using the templates in client/models
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MappingBenchmark {
+
+    @Param({"3303", "3311"})
+    public String model;
+
+    private JSONObject deviceJson;
+    private DeviceManager deviceManager;
+    private String path;
+    private String label;
+
+    @Setup
+    public void setup() {
+        deviceJson = Fixtures.device(model, "b3nch");
+        Device device = new Device(deviceJson);
+
+        deviceManager = new DeviceManager("http://localhost", new DinamicModelProvider(ObjectLoader.loadDefault()));
+        deviceManager.RegisterModel(device);
+
+        for (DeviceAttribute attr : device.getAttributes()) {
+            if (attr.isLwm2mAttr()) {
+                path = attr.path;
+                label = attr.label;
+            }
+        }
+    }
+
+    @Benchmark
+    public int[] getIdsfromPath() {
+        return DeviceAttribute.getIdsfromPath(path);
+    }
+
+    @Benchmark
+    public String getLabelFromPath() {
+        return deviceManager.getLabelFromPath(path);
+    }
+
+    @Benchmark
+    public int[] getPathFromLabel() {
+        return deviceManager.getPathFromLabel(label);
+    }
+
+    @Benchmark
+    public Device deviceFromJson() {
+        return new Device(deviceJson);
+    }
+}
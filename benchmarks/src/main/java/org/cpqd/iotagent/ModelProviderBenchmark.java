@@ -0,0 +1,55 @@
+package org.cpqd.iotagent;
+
+import org.eclipse.leshan.core.model.LwM2mModel;
+import org.eclipse.leshan.core.model.ObjectLoader;
+import org.eclipse.leshan.core.model.ObjectModel;
+import org.eclipse.leshan.core.model.ResourceModel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+  DinamicModelProvider.addObjectModel, done for every object discovered in a template
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ModelProviderBenchmark {
+
+    private DinamicModelProvider provider;
+    private ObjectModel objectModel;
+
+    @Setup
+    public void setup() {
+        provider = new DinamicModelProvider(ObjectLoader.loadDefault());
+
+        Device device = new Device(Fixtures.device("3311", "b3nch"));
+        List<ResourceModel> resources = new ArrayList<>();
+        for (DeviceAttribute attr : device.getAttributes()) {
+            if (attr.isLwm2mAttr()) {
+                resources.add(attr.getLwm2mResourceModel());
+            }
+        }
+        objectModel = new ObjectModel(3311, "Light Control", "", "1", true, false, resources);
+    }
+
+    @Benchmark
+    public LwM2mModel addObjectModel() {
+        provider.addObjectModel(objectModel);
+        return provider.getObjectModel(null);
+    }
+}
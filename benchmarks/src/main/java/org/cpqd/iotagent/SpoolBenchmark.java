@@ -0,0 +1,73 @@
+package org.cpqd.iotagent;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/*
+  Write throughput of the disk spool for a notification of two attributes, and the cost of reading
+  a record back during replay
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SpoolBenchmark {
+
+    private File dir;
+    private TelemetrySpool spool;
+    private JSONObject attrs;
+
+    @Setup(Level.Iteration)
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("spool").toFile();
+        // Old segments are dropped as the benchmark fills the spool
+        spool = new TelemetrySpool(dir, 64 * 1024 * 1024, 4, 0);
+        attrs = new JSONObject().put("temperature", 21.5).put("status", "ok");
+        for (int i = 0; i < 1000; i++) {
+            spool.append("device" + i, "admin", attrs);
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Benchmark
+    public void append() {
+        spool.append("a1b2c3", "admin", attrs);
+    }
+
+    @Benchmark
+    public TelemetrySpool.Record replay() {
+        TelemetrySpool.Record record = spool.peek();
+        spool.commit(record);
+        // Keeps the spool from running dry
+        spool.append(record.deviceId, record.service, record.attrs);
+        return record;
+    }
+}
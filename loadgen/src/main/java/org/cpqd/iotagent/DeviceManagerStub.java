@@ -0,0 +1,108 @@
+package org.cpqd.iotagent;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import spark.Spark;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+  Minimal device-manager answering the lookups done by the agent for simulated devices.
+  Every serial number maps to a device "sim<serial>" using the simulated sensor template.
+ */
+public class DeviceManagerStub {
+    public static final String DEVICE_TYPE = "SimDevice";
+
+    private final AtomicLong lookups = new AtomicLong();
+    private volatile long lastLookup;
+    // Simulated device-manager latency, in milliseconds
+    private final int lookupDelay;
+
+    public DeviceManagerStub() {
+        this(0);
+    }
+
+    public DeviceManagerStub(int lookupDelay) {
+        this.lookupDelay = lookupDelay;
+    }
+
+    public void start() {
+        Spark.get("/device", (request, response) -> {
+            if (lookupDelay > 0) {
+                Thread.sleep(lookupDelay);
+            }
+            String serialNumber = null;
+            String[] attrs = request.queryParamsValues("attr");
+            if (attrs != null) {
+                for (String attr : attrs) {
+                    if (attr.startsWith("serial_number=")) {
+                        serialNumber = attr.substring("serial_number=".length());
+                    }
+                }
+            }
+            lookups.incrementAndGet();
+            lastLookup = System.nanoTime();
+
+            JSONArray devices = new JSONArray();
+            if (serialNumber != null) {
+                devices.put(device(serialNumber));
+            }
+            response.type("application/json");
+            return new JSONObject().put("devices", devices).toString();
+        });
+
+        Spark.get("/template", (request, response) -> {
+            response.type("application/json");
+            JSONArray templates = new JSONArray().put(new JSONObject().put("label", "sim_template"));
+            return new JSONObject().put("templates", templates).toString();
+        });
+
+        Spark.awaitInitialization();
+    }
+
+    public static String deviceId(String serialNumber) {
+        return "sim" + serialNumber;
+    }
+
+    private static JSONObject device(String serialNumber) {
+        JSONArray template = new JSONArray()
+                .put(attribute("device_type", "static", "string", DEVICE_TYPE, "/3/0/1"))
+                .put(attribute("serial_number", "static", "string", serialNumber, "/3/0/2"))
+                .put(attribute("fw_version", "static", "string", "1.0.0", null))
+                .put(attribute("temperature", "dynamic", "float", null, "/3303/0/5700"))
+                .put(attribute("application", "actuator", "string", null, "/3303/0/5750"));
+
+        return new JSONObject()
+                .put("id", deviceId(serialNumber))
+                .put("label", "simulated")
+                .put("attrs", new JSONObject().put("1", template));
+    }
+
+    private static JSONObject attribute(String label, String type, String valueType, String staticValue, String path) {
+        JSONObject attr = new JSONObject()
+                .put("label", label)
+                .put("type", type)
+                .put("value_type", valueType)
+                .put("template_id", "1");
+        if (staticValue != null) {
+            attr.put("static_value", staticValue);
+        }
+        if (path != null) {
+            JSONObject meta = new JSONObject()
+                    .put("label", "oi")
+                    .put("type", "lwm2m")
+                    .put("value_type", "string")
+                    .put("static_value", path);
+            attr.put("metadata", new JSONArray().put(meta));
+        }
+        return attr;
+    }
+
+    public long getLookups() {
+        return lookups.get();
+    }
+
+    public long getLastLookup() {
+        return lastLookup;
+    }
+}
@@ -0,0 +1,49 @@
+package org.cpqd.iotagent;
+
+import org.json.JSONObject;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+  Stand-in for kafka, measures the time between a simulated device notifying and the agent publishing it.
+  It can be made unavailable to simulate an outage, publishing then fails.
+ */
+public class InMemoryPublisher implements AttributePublisher {
+    private final Map<String, Long> sentAt;
+    private final LatencyRecorder latency;
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private volatile boolean available = true;
+
+    public InMemoryPublisher(Map<String, Long> sentAt, LatencyRecorder latency) {
+        this.sentAt = sentAt;
+        this.latency = latency;
+    }
+
+    @Override
+    public void publish(String deviceId, String service, JSONObject attrs) {
+        if (!available) {
+            rejected.incrementAndGet();
+            throw new IllegalStateException("kafka unavailable");
+        }
+        published.incrementAndGet();
+        Long sent = sentAt.remove(deviceId);
+        if (sent != null) {
+            latency.record((System.nanoTime() - sent) / 1000);
+        }
+    }
+
+    public long getPublished() {
+        return published.get();
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    public void setAvailable(boolean available) {
+        this.available = available;
+    }
+}
@@ -0,0 +1,45 @@
+package org.cpqd.iotagent;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+  Keeps up to capacity latency samples (in microseconds), extra samples are only counted
+ */
+public class LatencyRecorder {
+    private final long[] samples;
+    private final AtomicInteger count = new AtomicInteger();
+
+    public LatencyRecorder(int capacity) {
+        samples = new long[capacity];
+    }
+
+    public void record(long micros) {
+        int i = count.getAndIncrement();
+        if (i < samples.length) {
+            samples[i] = micros;
+        }
+    }
+
+    public int getCount() {
+        return count.get();
+    }
+
+    /**
+     * Returns the given percentiles (0-100) of the recorded samples
+     */
+    public long[] percentiles(double... percentiles) {
+        int n = Math.min(count.get(), samples.length);
+        long[] sorted = Arrays.copyOf(samples, n);
+        Arrays.sort(sorted);
+        long[] result = new long[percentiles.length];
+        for (int i = 0; i < percentiles.length; i++) {
+            if (n == 0) {
+                continue;
+            }
+            int index = (int) Math.ceil(percentiles[i] / 100.0 * n) - 1;
+            result[i] = sorted[Math.max(0, Math.min(n - 1, index))];
+        }
+        return result;
+    }
+}
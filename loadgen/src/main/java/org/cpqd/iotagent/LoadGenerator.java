@@ -0,0 +1,170 @@
+package org.cpqd.iotagent;
+
+import org.json.JSONObject;
+import spark.Spark;
+
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/*
+  Runs the agent in-process against N simulated LwM2M clients on localhost.
+  device-manager is stubbed over HTTP and kafka is replaced by an in-memory publisher.
+
+      java -jar loadgen.jar -devices 1000 -rate 1 -writes 10 -duration 60 -port 8081 -threads 4
+                            -virtual true -lookup-delay 200 -outage 20
+
+  With -outage the in-memory kafka is unavailable for that many seconds in the middle of the run,
+  updates go to a disk spool meanwhile and are replayed afterwards.
+
+  Reports registrations/sec, notification to publish latency percentiles and heap usage.
+ */
+public class LoadGenerator {
+
+    public static void main(String[] args) throws Exception {
+        int devices = intArg(args, "-devices", 100);
+        double rate = Double.parseDouble(stringArg(args, "-rate", "1"));
+        int writesPerSec = intArg(args, "-writes", 0);
+        int duration = intArg(args, "-duration", 60);
+        int port = intArg(args, "-port", 8081);
+        int threads = intArg(args, "-threads", 0);
+        boolean virtual = Boolean.parseBoolean(stringArg(args, "-virtual", "false"));
+        int lookupDelay = intArg(args, "-lookup-delay", 0);
+        int outage = intArg(args, "-outage", 0);
+
+        // Virtual threads must be chosen before the agent creates its lanes
+        if (virtual && !Workers.useVirtualThreads(true)) {
+            System.err.println("Virtual threads need java 21 or later");
+            System.exit(1);
+        }
+
+        // CoAP receiver/sender/protocol threads and agent listener lanes, 0 keeps the defaults
+        if (threads > 0) {
+            NetworkTuning.configure(threads, threads, threads);
+            NetworkTuning.setListenerThreads(threads, threads);
+        }
+
+        // device-manager and image-manager stubs
+        Spark.port(port);
+        // Enough stub threads for the device-manager concurrency limit of the agent
+        Spark.threadPool(256);
+        DeviceManagerStub deviceManager = new DeviceManagerStub(lookupDelay);
+        deviceManager.start();
+        String stubUrl = "http://localhost:" + port;
+
+        Map<String, Long> sentAt = new ConcurrentHashMap<>();
+        LatencyRecorder latency = new LatencyRecorder(1000000);
+        InMemoryPublisher publisher = new InMemoryPublisher(sentAt, latency);
+
+        TelemetrySpool spool = null;
+        AttributePublisher agentPublisher = publisher;
+        if (outage > 0) {
+            spool = new TelemetrySpool(Files.createTempDirectory("spool").toFile(), 16 * 1024 * 1024, 64, 0);
+            agentPublisher = new SpoolingPublisher(publisher, spool, intArg(args, "-replay-rate", 5000));
+        }
+
+        LwM2mAgent agent = new LwM2mAgent(stubUrl, stubUrl, ClusterNode.standalone(),
+                new EventDispatcher(Runtime.getRuntime().availableProcessors(), 1000), agentPublisher);
+        agent.run();
+        long baseHeap = usedHeap();
+
+        // Registration phase
+        List<SimulatedClient> clients = new ArrayList<>(devices);
+        long start = System.nanoTime();
+        for (int i = 0; i < devices; i++) {
+            SimulatedClient client = new SimulatedClient("coap://127.0.0.1:5683", String.format("%08d", i), sentAt);
+            clients.add(client);
+            client.start();
+        }
+        long deadline = System.currentTimeMillis() + 60000 + devices * 10L;
+        while (deviceManager.getLookups() < devices && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+        }
+        double registrationSeconds = (deviceManager.getLastLookup() - start) / 1e9;
+        long registered = deviceManager.getLookups();
+        // Give the agent time to set up the observations
+        Thread.sleep(5000);
+
+        // Notification and write phase
+        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(4);
+        long period = (long) (1e6 / rate);
+        for (SimulatedClient client : clients) {
+            scheduler.scheduleAtFixedRate(client::emit, (long) (Math.random() * period), period, TimeUnit.MICROSECONDS);
+        }
+        if (writesPerSec > 0) {
+            scheduler.scheduleAtFixedRate(() -> {
+                int i = (int) (Math.random() * devices);
+                agent.handleEvent("configure", configure(DeviceManagerStub.deviceId(String.format("%08d", i))));
+            }, 0, 1000000 / writesPerSec, TimeUnit.MICROSECONDS);
+        }
+        if (outage > 0) {
+            scheduler.schedule(() -> publisher.setAvailable(false), duration / 3, TimeUnit.SECONDS);
+            scheduler.schedule(() -> publisher.setAvailable(true), duration / 3 + outage, TimeUnit.SECONDS);
+        }
+        Thread.sleep(duration * 1000L);
+        scheduler.shutdownNow();
+        publisher.setAvailable(true);
+        // Replay of what was spooled during the outage
+        long replayDeadline = System.currentTimeMillis() + 120000;
+        while (spool != null && !spool.isEmpty() && System.currentTimeMillis() < replayDeadline) {
+            Thread.sleep(100);
+        }
+        long heap = usedHeap();
+
+        long[] p = latency.percentiles(50, 90, 99, 99.9, 100);
+        System.out.println("devices:             " + devices + (virtual ? " (virtual threads)" : ""));
+        System.out.println("threads:             " + Thread.activeCount() + " live platform threads");
+        System.out.println(String.format("registrations:       %d in %.1f s (%.1f/s)", registered, registrationSeconds,
+                registered / registrationSeconds));
+        System.out.println(String.format("notifications:       %d published (%.1f/s)", publisher.getPublished(),
+                publisher.getPublished() / (double) duration));
+        System.out.println(String.format("latency (us):        p50=%d p90=%d p99=%d p99.9=%d max=%d",
+                p[0], p[1], p[2], p[3], p[4]));
+        System.out.println("writes accepted:     " + SimulatedClient.getWrites());
+        if (spool != null) {
+            System.out.println(String.format("outage:              %d s, %d publish attempts rejected, %d left in spool",
+                    outage, publisher.getRejected(), spool.getPending()));
+        }
+        System.out.println(String.format("heap:                %d MB used, %d MB after registering (simulated clients included)",
+                heap / (1024 * 1024), (heap - baseHeap) / (1024 * 1024)));
+
+        for (SimulatedClient client : clients) {
+            client.stop();
+        }
+        agent.stop();
+        System.exit(0);
+    }
+
+    private static JSONObject configure(String deviceId) {
+        return new JSONObject()
+                .put("event", "configure")
+                .put("meta", new JSONObject().put("service", "admin"))
+                .put("data", new JSONObject()
+                        .put("id", deviceId)
+                        .put("attrs", new JSONObject().put("application", "load-" + System.nanoTime())));
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static String stringArg(String[] args, String name, String defaultValue) {
+        for (int i = 0; i < args.length - 1; i++) {
+            if (args[i].equals(name)) {
+                return args[i + 1];
+            }
+        }
+        return defaultValue;
+    }
+
+    private static int intArg(String[] args, String name, int defaultValue) {
+        return Integer.parseInt(stringArg(args, name, String.valueOf(defaultValue)));
+    }
+}
@@ -0,0 +1,131 @@
+package org.cpqd.iotagent;
+
+import org.eclipse.californium.core.network.config.NetworkConfig;
+import org.eclipse.leshan.client.californium.LeshanClient;
+import org.eclipse.leshan.client.californium.LeshanClientBuilder;
+import org.eclipse.leshan.client.object.Security;
+import org.eclipse.leshan.client.object.Server;
+import org.eclipse.leshan.client.resource.BaseInstanceEnabler;
+import org.eclipse.leshan.client.resource.ObjectsInitializer;
+import org.eclipse.leshan.core.model.LwM2mModel;
+import org.eclipse.leshan.core.model.ObjectLoader;
+import org.eclipse.leshan.core.model.ObjectModel;
+import org.eclipse.leshan.core.node.LwM2mResource;
+import org.eclipse.leshan.core.request.BindingMode;
+import org.eclipse.leshan.core.response.ReadResponse;
+import org.eclipse.leshan.core.response.WriteResponse;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+  A Leshan client exposing the Device object (3) and a temperature sensor (3303)
+ */
+public class SimulatedClient {
+    private static final int SHORT_SERVER_ID = 123;
+    private static final LwM2mModel model = loadModel();
+    private static final AtomicLong writes = new AtomicLong();
+
+    private final String serialNumber;
+    private final Map<String, Long> sentAt;
+    private final Sensor sensor = new Sensor();
+    private final LeshanClient client;
+
+    public SimulatedClient(String serverUri, String serialNumber, Map<String, Long> sentAt) {
+        this.serialNumber = serialNumber;
+        this.sentAt = sentAt;
+
+        ObjectsInitializer initializer = new ObjectsInitializer(model);
+        initializer.setInstancesForObject(0, Security.noSec(serverUri, SHORT_SERVER_ID));
+        initializer.setInstancesForObject(1, new Server(SHORT_SERVER_ID, 300, BindingMode.U, false));
+        initializer.setInstancesForObject(3, new DeviceInfo());
+        initializer.setInstancesForObject(3303, sensor);
+
+        // Thousands of clients share the host, keep each CoAP stack small
+        NetworkConfig coapConfig = new NetworkConfig();
+        coapConfig.setInt(NetworkConfig.Keys.NETWORK_STAGE_RECEIVER_THREAD_COUNT, 1);
+        coapConfig.setInt(NetworkConfig.Keys.NETWORK_STAGE_SENDER_THREAD_COUNT, 1);
+        coapConfig.setInt(NetworkConfig.Keys.PROTOCOL_STAGE_THREAD_COUNT, 1);
+
+        LeshanClientBuilder builder = new LeshanClientBuilder("sim-" + serialNumber);
+        builder.setLocalAddress("127.0.0.1", 0);
+        builder.setCoapConfig(coapConfig);
+        builder.setObjects(initializer.create(0, 1, 3, 3303));
+        client = builder.build();
+    }
+
+    private static LwM2mModel loadModel() {
+        List<ObjectModel> models = ObjectLoader.loadDefault();
+        models.addAll(ObjectLoader.loadDdfResources("/models/", new String[]{"3303.xml"}));
+        return new LwM2mModel(models);
+    }
+
+    public static long getWrites() {
+        return writes.get();
+    }
+
+    public void start() {
+        client.start();
+    }
+
+    public void stop() {
+        client.destroy(false);
+    }
+
+    /**
+     * Changes the sensor value, notifying the agent if it observes it
+     */
+    public void emit() {
+        sentAt.put(DeviceManagerStub.deviceId(serialNumber), System.nanoTime());
+        sensor.next();
+    }
+
+    class DeviceInfo extends BaseInstanceEnabler {
+        @Override
+        public ReadResponse read(int resourceid) {
+            switch (resourceid) {
+                case 1:
+                    return ReadResponse.success(resourceid, DeviceManagerStub.DEVICE_TYPE);
+                case 2:
+                    return ReadResponse.success(resourceid, serialNumber);
+                case 3:
+                    return ReadResponse.success(resourceid, "1.0.0");
+                default:
+                    return super.read(resourceid);
+            }
+        }
+    }
+
+    static class Sensor extends BaseInstanceEnabler {
+        private volatile double value = 20.0;
+        private volatile String application = "";
+
+        void next() {
+            value = 20.0 + Math.random() * 10;
+            fireResourcesChange(5700);
+        }
+
+        @Override
+        public ReadResponse read(int resourceid) {
+            switch (resourceid) {
+                case 5700:
+                    return ReadResponse.success(resourceid, value);
+                case 5750:
+                    return ReadResponse.success(resourceid, application);
+                default:
+                    return super.read(resourceid);
+            }
+        }
+
+        @Override
+        public WriteResponse write(int resourceid, LwM2mResource value) {
+            if (resourceid == 5750) {
+                application = (String) value.getValue();
+                writes.incrementAndGet();
+                return WriteResponse.success();
+            }
+            return super.write(resourceid, value);
+        }
+    }
+}
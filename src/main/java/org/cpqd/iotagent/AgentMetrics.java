@@ -0,0 +1,158 @@
+package org.cpqd.iotagent;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/*
+  Process wide metrics registry, rendered in the Prometheus text format by the /metrics endpoint.
+  Metrics are created on first use and cached by the caller, updates are lock free.
+  Labels are passed already formatted, e.g. operation="read"
+ */
+public class AgentMetrics {
+
+    // Latency buckets in seconds
+    private static final double[] BUCKETS = {0.001, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30};
+
+    private static final Map<String, Family> families = new ConcurrentSkipListMap<>();
+
+    public static class Counter {
+        private final LongAdder value = new LongAdder();
+
+        public void inc() {
+            value.increment();
+        }
+
+        public void add(long n) {
+            value.add(n);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+    }
+
+    public static class Histogram {
+        private final LongAdder[] buckets = new LongAdder[BUCKETS.length];
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sumNanos = new LongAdder();
+
+        Histogram() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        /**
+         * Records a duration measured with System.nanoTime()
+         */
+        public void observeNanos(long nanos) {
+            double seconds = nanos / 1e9;
+            for (int i = 0; i < BUCKETS.length; i++) {
+                if (seconds <= BUCKETS[i]) {
+                    buckets[i].increment();
+                    break;
+                }
+            }
+            count.increment();
+            sumNanos.add(nanos);
+        }
+
+        public void observeSince(long startNanos) {
+            observeNanos(System.nanoTime() - startNanos);
+        }
+    }
+
+    private static class Family {
+        final String type;
+        final String help;
+        final Map<String, Object> series = new ConcurrentHashMap<>();
+
+        Family(String type, String help) {
+            this.type = type;
+            this.help = help;
+        }
+    }
+
+    private static Family family(String name, String type, String help) {
+        return families.computeIfAbsent(name, n -> new Family(type, help));
+    }
+
+    public static Counter counter(String name, String help) {
+        return counter(name, "", help);
+    }
+
+    public static Counter counter(String name, String labels, String help) {
+        return (Counter) family(name, "counter", help).series.computeIfAbsent(labels, l -> new Counter());
+    }
+
+    public static Histogram histogram(String name, String help) {
+        return histogram(name, "", help);
+    }
+
+    public static Histogram histogram(String name, String labels, String help) {
+        return (Histogram) family(name, "histogram", help).series.computeIfAbsent(labels, l -> new Histogram());
+    }
+
+    public static void gauge(String name, String help, LongSupplier value) {
+        gauge(name, "", help, value);
+    }
+
+    public static void gauge(String name, String labels, String help, LongSupplier value) {
+        family(name, "gauge", help).series.put(labels, value);
+    }
+
+    /**
+     * Renders every metric in the Prometheus text exposition format
+     */
+    public static String scrape() {
+        StringBuilder out = new StringBuilder(4096);
+        for (Map.Entry<String, Family> entry : families.entrySet()) {
+            String name = entry.getKey();
+            Family family = entry.getValue();
+            out.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+
+            for (Map.Entry<String, Object> series : family.series.entrySet()) {
+                String labels = series.getKey();
+                Object metric = series.getValue();
+                if (metric instanceof Counter) {
+                    sample(out, name, labels, ((Counter) metric).get());
+                } else if (metric instanceof LongSupplier) {
+                    sample(out, name, labels, ((LongSupplier) metric).getAsLong());
+                } else {
+                    Histogram h = (Histogram) metric;
+                    long cumulative = 0;
+                    for (int i = 0; i < BUCKETS.length; i++) {
+                        cumulative += h.buckets[i].sum();
+                        sample(out, name + "_bucket", join(labels, "le=\"" + BUCKETS[i] + "\""), cumulative);
+                    }
+                    long count = h.count.sum();
+                    sample(out, name + "_bucket", join(labels, "le=\"+Inf\""), count);
+                    out.append(name).append("_sum");
+                    if (!labels.isEmpty()) {
+                        out.append('{').append(labels).append('}');
+                    }
+                    out.append(' ').append(String.format(Locale.ROOT, "%.6f", h.sumNanos.sum() / 1e9)).append('\n');
+                    sample(out, name + "_count", labels, count);
+                }
+            }
+        }
+        return out.toString();
+    }
+
+    private static String join(String labels, String label) {
+        return labels.isEmpty() ? label : labels + "," + label;
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, long value) {
+        out.append(name);
+        if (!labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ').append(value).append('\n');
+    }
+}
@@ -0,0 +1,110 @@
+package org.cpqd.iotagent;
+
+import org.apache.log4j.Logger;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/*
+  How the values of a dynamic attribute are summarised before being published, read from the
+  "aggregation" (e.g. "avg" or "min,max,avg") and "aggregation_window" (seconds) metadata of the attribute.
+  Immutable, shared by the attributes of a template like the attributes themselves.
+ */
+public class AggregationPolicy {
+    private static Logger mLogger = Logger.getLogger(AggregationPolicy.class);
+
+    public static final int MIN = 1;
+    public static final int MAX = 1 << 1;
+    public static final int AVG = 1 << 2;
+    public static final int LAST = 1 << 3;
+    public static final int COUNT = 1 << 4;
+
+    private static final long DEFAULT_WINDOW = 60000;
+
+    // Bitmask of the functions published
+    final int functions;
+    final long window;
+
+    AggregationPolicy(int functions, long window) {
+        this.functions = functions;
+        this.window = window;
+    }
+
+    /**
+     * The policy in the attribute metadata, or null if its values are published as they come.
+     * An invalid policy is logged and ignored, rather than making the whole device unusable
+     */
+    public static AggregationPolicy fromMetadata(JSONObject json) {
+        JSONArray metadata = json.optJSONArray("metadata");
+        if (metadata == null) {
+            return null;
+        }
+        int functions = 0;
+        long window = DEFAULT_WINDOW;
+        try {
+            for (int i = 0; i < metadata.length(); i++) {
+                JSONObject meta = metadata.getJSONObject(i);
+                String label = meta.optString("label");
+                if (label.equals("aggregation")) {
+                    functions = parseFunctions(meta.get("static_value").toString());
+                } else if (label.equals("aggregation_window")) {
+                    window = (long) (Double.parseDouble(meta.get("static_value").toString()) * 1000);
+                }
+            }
+        } catch (RuntimeException e) {
+            // NumberFormatException, JSONException or an unknown function
+            mLogger.warn("Invalid aggregation of " + json.optString("label") + ", published as is: " + e.getMessage());
+            return null;
+        }
+        if (functions == 0 || window <= 0) {
+            return null;
+        }
+        return new AggregationPolicy(functions, window);
+    }
+
+    static int parseFunctions(String functions) {
+        int mask = 0;
+        for (String function : functions.split(",")) {
+            switch (function.trim().toLowerCase()) {
+                case "min":
+                    mask |= MIN;
+                    break;
+                case "max":
+                    mask |= MAX;
+                    break;
+                case "avg":
+                    mask |= AVG;
+                    break;
+                case "last":
+                    mask |= LAST;
+                    break;
+                case "count":
+                    mask |= COUNT;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Invalid aggregation " + function);
+            }
+        }
+        return mask;
+    }
+
+    public boolean hasSingleFunction() {
+        return Integer.bitCount(functions) == 1;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof AggregationPolicy)) {
+            return false;
+        }
+        AggregationPolicy other = (AggregationPolicy) o;
+        return functions == other.functions && window == other.window;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * functions + Long.hashCode(window);
+    }
+}
@@ -0,0 +1,18 @@
+package org.cpqd.iotagent;
+
+import org.json.JSONObject;
+
+/*
+  Destination of the attribute values read from devices
+ */
+public interface AttributePublisher {
+
+    void publish(String deviceId, String service, JSONObject attrs);
+
+    /**
+     * False while publishing is known to fail, e.g. kafka is not connected
+     */
+    default boolean isHealthy() {
+        return true;
+    }
+}
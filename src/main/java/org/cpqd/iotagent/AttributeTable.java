@@ -0,0 +1,118 @@
+package org.cpqd.iotagent;
+
+import org.json.JSONArray;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/*
+  Immutable set of attributes with O(1) lookup by label.
+  Tables are interned, so every device built from the same template attributes shares a single instance.
+  The interned tables are weakly held, a table is dropped once no device or template uses it anymore.
+ */
+public class AttributeTable implements Iterable<DeviceAttribute> {
+    private static final Map<AttributeTable, WeakReference<AttributeTable>> interned =
+            Collections.synchronizedMap(new WeakHashMap<>());
+
+    private final DeviceAttribute[] attributes;
+    private final Map<String, Integer> index;
+
+    private AttributeTable(DeviceAttribute[] attributes) {
+        this.attributes = attributes;
+        this.index = new HashMap<>(attributes.length * 2);
+        for (int i = 0; i < attributes.length; i++) {
+            index.put(attributes[i].label, i);
+        }
+    }
+
+    public static AttributeTable of(DeviceAttribute[] attributes) {
+        AttributeTable table = new AttributeTable(attributes);
+        synchronized (interned) {
+            WeakReference<AttributeTable> ref = interned.get(table);
+            AttributeTable shared = ref == null ? null : ref.get();
+            if (shared != null) {
+                return shared;
+            }
+            interned.put(table, new WeakReference<>(table));
+            return table;
+        }
+    }
+
+    /**
+     * Builds the table from a template attribute list
+     */
+    public static AttributeTable fromTemplate(JSONArray template) {
+        DeviceAttribute[] attrs = new DeviceAttribute[template.length()];
+        for (int i = 0; i < attrs.length; i++) {
+            attrs[i] = new DeviceAttribute(template.getJSONObject(i));
+        }
+        return of(attrs);
+    }
+
+    public int size() {
+        return attributes.length;
+    }
+
+    public DeviceAttribute get(int i) {
+        return attributes[i];
+    }
+
+    /**
+     * Returns the position of the attribute in this table or -1 if there is no such label
+     */
+    public int indexOf(String label) {
+        Integer i = index.get(label);
+        return i == null ? -1 : i;
+    }
+
+    public DeviceAttribute get(String label) {
+        Integer i = index.get(label);
+        return i == null ? null : attributes[i];
+    }
+
+    public String getStaticValue(String label) {
+        DeviceAttribute attr = get(label);
+        return attr == null ? "" : attr.staticValue;
+    }
+
+    public String getTemplateId(String label) {
+        DeviceAttribute attr = get(label);
+        return attr == null ? "" : attr.templateId;
+    }
+
+    /**
+     * True if the attributes only differ from this table by their static values
+     */
+    public boolean hasSameShape(DeviceAttribute[] others) {
+        if (others.length != attributes.length) {
+            return false;
+        }
+        for (DeviceAttribute other : others) {
+            DeviceAttribute attr = get(other.label);
+            if (attr == null || !attr.hasSameShape(other)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public Iterator<DeviceAttribute> iterator() {
+        return Arrays.asList(attributes).iterator();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return this == o || (o instanceof AttributeTable && Arrays.equals(attributes, ((AttributeTable) o).attributes));
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(attributes);
+    }
+}
@@ -0,0 +1,69 @@
+package org.cpqd.iotagent;
+
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/*
+  Bounds the requests in flight to each backend (device-manager, image-manager, devices), so that
+  thousands of workflows on virtual threads do not all hit a backend at once.
+  Callers block until a permit is free.
+ */
+public class BackendLimit {
+    public static final String DEVICE_MANAGER = "device-manager";
+    public static final String IMAGE_MANAGER = "image-manager";
+    public static final String DEVICES = "devices";
+
+    private static final int DEFAULT_PERMITS = 256;
+    private static final Map<String, BackendLimit> limits = new ConcurrentHashMap<>();
+
+    private final int size;
+    private final Semaphore permits;
+
+    private BackendLimit(String backend, int size) {
+        this.size = size;
+        this.permits = new Semaphore(size);
+        AgentMetrics.gauge("backend_requests_in_flight", "backend=\"" + backend + "\"",
+                "Requests in flight per backend", () -> this.size - permits.availablePermits());
+    }
+
+    /**
+     * Sets the limit of a backend, to be called at startup before any request
+     */
+    public static void setPermits(String backend, int permits) {
+        limits.put(backend, new BackendLimit(backend, permits));
+    }
+
+    public static BackendLimit of(String backend) {
+        return limits.computeIfAbsent(backend, b -> new BackendLimit(b, DEFAULT_PERMITS));
+    }
+
+    /**
+     * Runs the request once a permit is free
+     */
+    public <T> T call(Callable<T> request) throws Exception {
+        permits.acquire();
+        try {
+            return request.call();
+        } finally {
+            permits.release();
+        }
+    }
+
+    public void acquire() throws InterruptedException {
+        permits.acquire();
+    }
+
+    /**
+     * Waits at most timeoutMs for a permit, returns whether one was acquired
+     */
+    public boolean tryAcquire(long timeoutMs) throws InterruptedException {
+        return permits.tryAcquire(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    public void release() {
+        permits.release();
+    }
+}
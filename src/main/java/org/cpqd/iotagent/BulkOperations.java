@@ -0,0 +1,302 @@
+package org.cpqd.iotagent;
+
+import org.apache.log4j.Logger;
+import org.eclipse.leshan.core.model.LwM2mModelProvider;
+import org.eclipse.leshan.core.model.ResourceModel;
+import org.eclipse.leshan.server.registration.Registration;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+  One operation (read, write, execute or observe of a resource) applied to many devices at once.
+  A job selects the devices registered on this node by template, tenant or id list, and runs the operation
+  on up to "concurrency" devices at a time. Results are queued as they complete, to be streamed to the
+  caller, and the job counts its progress until it is over, whether anyone reads the results or not.
+  Commands to sleeping devices are queued until they wake up, reads are skipped unless the shadow answers.
+
+      {"selector": {"template": "4"}, "operation": "write", "attribute": "light", "value": false}
+      {"selector": {"ids": ["a1b2c3"]}, "operation": "read", "path": "/3/0/3", "max_age": 60}
+ */
+public class BulkOperations {
+    private Logger mLogger = Logger.getLogger(BulkOperations.class);
+
+    private static final int DEFAULT_CONCURRENCY = 256;
+    private static final int MAX_CONCURRENCY = 1024;
+    // Size of the worker pool without virtual threads. It is shared by every job, so there the in-flight
+    // devices of all jobs together stay below it whatever their concurrency
+    public static final int PLATFORM_THREADS = DEFAULT_CONCURRENCY;
+    private static final int KEPT_JOBS = 100;
+
+    private final DeviceManager deviceManager;
+    private final LwM2mHandler requestHandler;
+    private final LwM2mModelProvider modelProvider;
+    private final ExecutorService workers;
+    private final AtomicInteger nextId = new AtomicInteger();
+    // Recent jobs for the progress endpoint, oldest dropped first
+    private final Map<String, Job> jobs = new LinkedHashMap<String, Job>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Job> eldest) {
+            return size() > KEPT_JOBS;
+        }
+    };
+
+    private static final AgentMetrics.Counter operations = AgentMetrics.counter("bulk_operations_total",
+            "Device operations run by bulk jobs");
+
+    public class Job {
+        final String id;
+        final String operation;
+        final int[] ids;
+        final Object value;
+        final long maxAge;
+        final List<String> devices;
+        final long started = System.currentTimeMillis();
+        final AtomicInteger done = new AtomicInteger();
+        final AtomicInteger succeeded = new AtomicInteger();
+        final AtomicInteger queued = new AtomicInteger();
+        final AtomicInteger skipped = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        final BlockingQueue<JSONObject> results = new LinkedBlockingQueue<>();
+        volatile boolean streaming = true;
+        volatile long finished;
+
+        Job(String id, String operation, int[] ids, Object value, long maxAge, List<String> devices) {
+            this.id = id;
+            this.operation = operation;
+            this.ids = ids;
+            this.value = value;
+            this.maxAge = maxAge;
+            this.devices = devices;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public JSONObject getProgress() {
+            long end = finished > 0 ? finished : System.currentTimeMillis();
+            return new JSONObject()
+                    .put("id", id)
+                    .put("operation", operation)
+                    .put("state", done.get() >= devices.size() ? "done" : "running")
+                    .put("total", devices.size())
+                    .put("done", done.get())
+                    .put("ok", succeeded.get())
+                    .put("queued", queued.get())
+                    .put("skipped", skipped.get())
+                    .put("failed", failed.get())
+                    .put("elapsed_ms", end - started);
+        }
+    }
+
+    public BulkOperations(DeviceManager deviceManager, LwM2mHandler requestHandler, LwM2mModelProvider modelProvider,
+                          ExecutorService workers) {
+        this.deviceManager = deviceManager;
+        this.requestHandler = requestHandler;
+        this.modelProvider = modelProvider;
+        this.workers = workers;
+    }
+
+    /**
+     * Validates the request and starts the job in the background, IllegalArgumentException if it is invalid
+     */
+    public Job start(JSONObject request) {
+        String operation = request.getString("operation");
+        if (!operation.equals("read") && !operation.equals("write") && !operation.equals("execute")
+                && !operation.equals("observe")) {
+            throw new IllegalArgumentException("Invalid operation " + operation);
+        }
+
+        int[] ids;
+        ResourceModel.Type type;
+        if (request.has("attribute")) {
+            ids = deviceManager.getPathFromLabel(request.getString("attribute"));
+            type = deviceManager.getTypeFromLabel(request.getString("attribute"));
+        } else {
+            ids = DeviceAttribute.getIdsfromPath(request.optString("path"));
+            ResourceModel resource = ids == null || ids.length != 3 ? null
+                    : modelProvider.getObjectModel(null).getResourceModel(ids[0], ids[2]);
+            type = resource == null ? ResourceModel.Type.STRING : resource.type;
+        }
+        if (ids == null || ids.length != 3 || ids[1] == DeviceAttribute.ANY_INSTANCE) {
+            throw new IllegalArgumentException("An attribute or resource path (/object/instance/resource) is required");
+        }
+
+        Object value = null;
+        if (operation.equals("write")) {
+            if (!request.has("value")) {
+                throw new IllegalArgumentException("Write without a value");
+            }
+            try {
+                value = ValueCodec.fromJson(type, request.get("value"));
+            } catch (Exception e) {
+                throw new IllegalArgumentException("Invalid value for " + type + ": " + request.get("value"));
+            }
+        }
+
+        int concurrency = Math.min(MAX_CONCURRENCY, Math.max(1, request.optInt("concurrency", DEFAULT_CONCURRENCY)));
+        long maxAge = request.optLong("max_age", 0) * 1000;
+        Job job = new Job(String.valueOf(nextId.incrementAndGet()), operation, ids, value, maxAge,
+                select(request.getJSONObject("selector")));
+        synchronized (jobs) {
+            jobs.put(job.id, job);
+        }
+        mLogger.info(String.format("Bulk %s %s of %d devices", job.id, operation, job.devices.size()));
+
+        Thread submitter = Workers.threadFactory("bulk-submit").newThread(() -> submit(job, concurrency));
+        submitter.setDaemon(true);
+        submitter.start();
+        return job;
+    }
+
+    public Job getJob(String id) {
+        synchronized (jobs) {
+            return jobs.get(id);
+        }
+    }
+
+    /**
+     * Writes each result as a JSON line as soon as it completes, then the final progress of the job.
+     * The job goes on if the caller goes away
+     */
+    public void stream(Job job, OutputStream out) {
+        try {
+            for (int written = 0; written < job.devices.size(); written++) {
+                out.write((job.results.take().toString() + "\n").getBytes(StandardCharsets.UTF_8));
+                if (job.results.isEmpty()) {
+                    out.flush();
+                }
+            }
+            out.write((new JSONObject().put("summary", job.getProgress()).toString() + "\n")
+                    .getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        } catch (IOException e) {
+            mLogger.debug("Bulk " + job.id + " caller left, the job goes on");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            job.streaming = false;
+            job.results.clear();
+        }
+    }
+
+    private List<String> select(JSONObject selector) {
+        List<String> devices = new ArrayList<>();
+        if (selector.has("ids")) {
+            JSONArray ids = selector.getJSONArray("ids");
+            for (int i = 0; i < ids.length(); i++) {
+                devices.add(ids.get(i).toString());
+            }
+            return devices;
+        }
+        String template = selector.has("template") ? selector.get("template").toString() : null;
+        String tenant = selector.optString("tenant", null);
+        if (template == null && tenant == null) {
+            throw new IllegalArgumentException("The selector needs a template, a tenant or ids");
+        }
+        for (String deviceId : deviceManager.getConnectedDeviceIds()) {
+            Device device = deviceManager.getDevice(deviceId);
+            if (device == null) {
+                continue;
+            }
+            if (template != null && !device.hasTemplate(template)) {
+                continue;
+            }
+            if (tenant != null && !tenant.equals(deviceManager.getDeviceService(deviceId))) {
+                continue;
+            }
+            devices.add(deviceId);
+        }
+        return devices;
+    }
+
+    // At most concurrency devices in flight, the next one starts when one completes
+    private void submit(Job job, int concurrency) {
+        Semaphore window = new Semaphore(concurrency);
+        try {
+            for (String deviceId : job.devices) {
+                window.acquire();
+                workers.execute(() -> {
+                    try {
+                        complete(job, run(job, deviceId));
+                    } catch (Exception e) {
+                        mLogger.error("Bulk " + job.id + " failed on " + deviceId, e);
+                        complete(job, new JSONObject().put("device", deviceId).put("status", "error"));
+                    } finally {
+                        window.release();
+                    }
+                });
+            }
+            window.acquire(concurrency);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        job.finished = System.currentTimeMillis();
+        mLogger.info("Bulk " + job.id + " done: " + job.getProgress());
+    }
+
+    private void complete(Job job, JSONObject result) {
+        switch (result.getString("status")) {
+            case "ok":
+                job.succeeded.incrementAndGet();
+                break;
+            case "queued":
+                job.queued.incrementAndGet();
+                break;
+            case "skipped":
+                job.skipped.incrementAndGet();
+                break;
+            default:
+                job.failed.incrementAndGet();
+        }
+        if (job.streaming) {
+            job.results.add(result);
+        }
+        job.done.incrementAndGet();
+        operations.inc();
+    }
+
+    private JSONObject run(Job job, String deviceId) {
+        JSONObject result = new JSONObject().put("device", deviceId);
+        Registration registration = deviceManager.getDeviceRegistration(deviceId);
+        if (registration == null) {
+            return result.put("status", "not_connected");
+        }
+        int[] ids = job.ids;
+        // Sleeping devices get the command when they wake up, and reads are served from the shadow only
+        boolean awake = requestHandler.isAwake(registration);
+        boolean accepted;
+        switch (job.operation) {
+            case "read": {
+                String value = requestHandler.ReadResource(registration, ids[0], ids[1], ids[2], job.maxAge);
+                if (value.isEmpty()) {
+                    // A read can't wait for the device to wake up, its result would never be streamed
+                    return result.put("status", awake ? "error" : "skipped");
+                }
+                return result.put("status", "ok").put("value", value);
+            }
+            case "write":
+                accepted = requestHandler.WriteResource(registration, ids[0], ids[1], ids[2], job.value);
+                break;
+            case "execute":
+                accepted = requestHandler.ExecuteResource(registration, ids[0], ids[1], ids[2]);
+                break;
+            default:
+                accepted = requestHandler.ObserveResource(registration, ids[0], ids[1], ids[2]);
+        }
+        return result.put("status", !accepted ? "error" : awake ? "ok" : "queued");
+    }
+}
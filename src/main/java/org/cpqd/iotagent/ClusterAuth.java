@@ -0,0 +1,60 @@
+package org.cpqd.iotagent;
+
+import org.apache.log4j.Logger;
+import spark.Request;
+
+import java.net.InetAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/*
+  Guards the internal cluster channel (/cluster/*) and the admin routes that act on devices (/bulk, /shadow).
+  With a shared secret every request must carry it in the X-Cluster-Token header, without one only the
+  addresses of the configured peers are accepted.
+ */
+public class ClusterAuth {
+    private Logger mLogger = Logger.getLogger(ClusterAuth.class);
+
+    public static final String HEADER = "X-Cluster-Token";
+
+    private final String secret;
+    private final Set<String> peerAddresses = new HashSet<>();
+
+    public ClusterAuth(String secret, Map<String, String> peers) {
+        this.secret = secret == null || secret.isEmpty() ? null : secret;
+        for (Map.Entry<String, String> peer : peers.entrySet()) {
+            try {
+                String host = URI.create(peer.getValue()).getHost();
+                for (InetAddress address : InetAddress.getAllByName(host)) {
+                    peerAddresses.add(address.getHostAddress());
+                }
+            } catch (Exception e) {
+                mLogger.warn("Unable to resolve peer " + peer.getKey() + ": " + e);
+            }
+        }
+        if (this.secret == null) {
+            mLogger.warn("No CLUSTER_SECRET, the cluster channel and device admin routes only accept the peer addresses "
+                    + peerAddresses);
+        }
+    }
+
+    public boolean allows(Request request) {
+        if (secret == null) {
+            return peerAddresses.contains(request.ip());
+        }
+        String token = request.headers(HEADER);
+        return token != null && MessageDigest.isEqual(token.getBytes(StandardCharsets.UTF_8),
+                secret.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Value of the X-Cluster-Token header on requests to peers, empty without a secret
+     */
+    public String getToken() {
+        return secret == null ? "" : secret;
+    }
+}
@@ -0,0 +1,160 @@
+package org.cpqd.iotagent;
+
+import com.mashape.unirest.http.HttpResponse;
+import com.mashape.unirest.http.Unirest;
+import org.apache.log4j.Logger;
+import org.json.JSONObject;
+import spark.Spark;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/*
+  Represents this agent instance inside a cluster of agents.
+  Kafka messages can be consumed by any node, but only the node holding the device registration can
+  talk to it. Messages for devices owned elsewhere are forwarded to the owner over an internal HTTP channel.
+ */
+public class ClusterNode {
+    private Logger mLogger = Logger.getLogger(ClusterNode.class);
+
+    private String nodeId;
+    private Map<String, String> peers;
+    private ClusterStore store;
+    private ClusterAuth auth;
+    // Filled when the agent is built, possibly after the route is served
+    private Map<String, Function<JSONObject, Integer>> forwardHandlers = new ConcurrentHashMap<>();
+
+    public ClusterNode(String nodeId, Map<String, String> peers, ClusterStore store, ClusterAuth auth) {
+        this.nodeId = nodeId;
+        this.peers = peers;
+        this.store = store;
+        this.auth = auth;
+    }
+
+    /**
+     * Single node setup, every device is owned locally and nothing is ever forwarded
+     */
+    public static ClusterNode standalone() {
+        return new ClusterNode("local", Collections.emptyMap(), new InMemoryClusterStore(),
+                new ClusterAuth(null, Collections.emptyMap()));
+    }
+
+    /**
+     * Parses a peer list in the form "node-a=http://agent-a:8080,node-b=http://agent-b:8080"
+     */
+    public static Map<String, String> parsePeers(String peerList) {
+        Map<String, String> peers = new HashMap<>();
+        if (peerList == null || peerList.isEmpty()) {
+            return peers;
+        }
+        for (String peer : peerList.split(",")) {
+            String[] p = peer.trim().split("=", 2);
+            if (p.length == 2) {
+                peers.put(p[0], p[1]);
+            }
+        }
+        return peers;
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    public boolean isClustered() {
+        return !peers.isEmpty();
+    }
+
+    public void claim(String deviceId) {
+        store.claim(deviceId, nodeId);
+    }
+
+    public void release(String deviceId) {
+        store.release(deviceId, nodeId);
+    }
+
+    /**
+     * Serves the messages forwarded by other nodes (POST /cluster/forward/:event).
+     * Spark routes are not registered thread safely, this must be called from the thread setting up the others
+     */
+    public void serve() {
+        if (!isClustered()) {
+            return;
+        }
+        Spark.post("/cluster/forward/:event", (request, response) -> {
+            if (!auth.allows(request)) {
+                response.status(403);
+                return "";
+            }
+            Function<JSONObject, Integer> h = forwardHandlers.get(request.params(":event"));
+            if (h == null) {
+                // Unknown event, or the agent is still starting
+                response.status(404);
+                return "";
+            }
+            Integer result = h.apply(new JSONObject(request.body()));
+            response.status(result != null && result < 0 ? 400 : 202);
+            return "";
+        });
+    }
+
+    /**
+     * Handles messages forwarded by other nodes, the handler must not forward them again.
+     * It should only queue the message: the sender waits for it, and gets 202 once it returns (400 for -1)
+     */
+    public void addForwardHandler(String event, Function<JSONObject, Integer> handler) {
+        forwardHandlers.put(event, handler);
+    }
+
+    /**
+     * Sends the message to the node owning the device
+     * Returns false if the device is not owned by any other node
+     */
+    public boolean forward(String deviceId, String event, JSONObject message) {
+        if (!isClustered()) {
+            return false;
+        }
+        String owner = store.getOwner(deviceId);
+        if (owner == null || owner.equals(nodeId) || !peers.containsKey(owner)) {
+            return false;
+        }
+
+        mLogger.debug(String.format("Forwarding %s of %s to %s", event, deviceId, owner));
+        if (send(owner, event, message)) {
+            return true;
+        }
+        // The device may have moved, the next message asks the peers again
+        store.invalidate(deviceId);
+        return false;
+    }
+
+    /**
+     * Sends the message to every other node, for events concerning devices that may be owned by any of them
+     */
+    public void broadcast(String event, JSONObject message) {
+        for (String peer : peers.keySet()) {
+            if (!peer.equals(nodeId)) {
+                send(peer, event, message);
+            }
+        }
+    }
+
+    private boolean send(String peer, String event, JSONObject message) {
+        try {
+            HttpResponse<String> response = Unirest.post(peers.get(peer) + "/cluster/forward/" + event)
+                    .header("Content-Type", "application/json")
+                    .header(ClusterAuth.HEADER, auth.getToken())
+                    .body(message.toString())
+                    .asString();
+            if (response.getStatus() < 300) {
+                return true;
+            }
+            mLogger.error("Unable to forward " + event + " to " + peer + ": status " + response.getStatus());
+        } catch (Exception e) {
+            mLogger.error("Unable to forward " + event + " to " + peer + ": " + e);
+        }
+        return false;
+    }
+}
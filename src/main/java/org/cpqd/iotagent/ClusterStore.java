@@ -0,0 +1,23 @@
+package org.cpqd.iotagent;
+
+/*
+  Keeps track of which agent node owns (holds the LwM2M registration of) each device.
+  Registrations themselves never leave the node the device is connected to, only the ownership does.
+ */
+public interface ClusterStore {
+
+    void claim(String deviceId, String nodeId);
+
+    void release(String deviceId, String nodeId);
+
+    /**
+     * Returns the id of the node currently owning the device, or null if no node owns it
+     */
+    String getOwner(String deviceId);
+
+    /**
+     * Forgets what is known about a device owned elsewhere, e.g. after its owner could not be reached
+     */
+    default void invalidate(String deviceId) {
+    }
+}
@@ -0,0 +1,186 @@
+package org.cpqd.iotagent;
+
+import org.apache.log4j.Logger;
+import org.eclipse.leshan.server.registration.Registration;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/*
+  Commands waiting for queue mode devices to wake up, kept per endpoint so they survive a re-registration.
+  A new command to a resource that already has one pending replaces it (last value wins) and takes its place
+  at the end of the queue (executes have unique keys, they are all kept). Memory is bounded per device (oldest command dropped) and overall (new commands
+  refused), and commands older than the ttl are discarded when the device is flushed. Queues are also swept
+  every ttl (at least every second), so the commands of devices that never come back do not stay in memory.
+ */
+public class CommandQueue {
+    private Logger mLogger = Logger.getLogger(CommandQueue.class);
+
+    private static int defaultPerDevice = 32;
+    private static int defaultTotal = 100000;
+    private static long defaultTtl = 3600000;
+
+    private static final AgentMetrics.Counter queued =
+            AgentMetrics.counter("lwm2m_commands_queued_total", "Commands held for sleeping devices");
+    private static final AgentMetrics.Counter coalesced =
+            AgentMetrics.counter("lwm2m_commands_coalesced_total", "Queued commands replaced by a newer value");
+    private static final AgentMetrics.Counter expired =
+            AgentMetrics.counter("lwm2m_commands_expired_total", "Queued commands discarded after their ttl");
+    private static final AgentMetrics.Counter dropped =
+            AgentMetrics.counter("lwm2m_commands_dropped_total", "Commands lost because a queue was full");
+    private static final AgentMetrics.Counter flushed =
+            AgentMetrics.counter("lwm2m_commands_flushed_total", "Queued commands sent after a device woke up");
+
+    private static class Command {
+        final Consumer<Registration> action;
+        final long created = System.currentTimeMillis();
+
+        Command(Consumer<Registration> action) {
+            this.action = action;
+        }
+    }
+
+    private final int perDevice;
+    private final int total;
+    private final long ttl;
+    private final Map<String, LinkedHashMap<String, Command>> queues = new ConcurrentHashMap<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final ScheduledExecutorService sweeper;
+
+    public static void setLimits(int perDevice, int total, long ttlMs) {
+        defaultPerDevice = perDevice;
+        defaultTotal = total;
+        defaultTtl = ttlMs;
+    }
+
+    public CommandQueue() {
+        this(defaultPerDevice, defaultTotal, defaultTtl);
+    }
+
+    public CommandQueue(int perDevice, int total, long ttlMs) {
+        this.perDevice = perDevice;
+        this.total = total;
+        this.ttl = ttlMs;
+        ThreadFactory threads = Workers.threadFactory("command-queue");
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = threads.newThread(r);
+            thread.setDaemon(true);
+            return thread;
+        });
+        long interval = Math.max(ttlMs, 1000);
+        sweeper.scheduleWithFixedDelay(this::sweep, interval, interval, TimeUnit.MILLISECONDS);
+        AgentMetrics.gauge("lwm2m_commands_pending", "Commands waiting for sleeping devices", size::get);
+    }
+
+    /**
+     * Queues a command for the endpoint, key identifies the resource it acts on
+     * Returns false if the command was refused
+     */
+    public boolean offer(String endpoint, String key, Consumer<Registration> action) {
+        while (true) {
+            LinkedHashMap<String, Command> queue = queues.computeIfAbsent(endpoint, e -> new LinkedHashMap<>());
+            synchronized (queue) {
+                // The device was flushed meanwhile
+                if (queues.get(endpoint) != queue) {
+                    continue;
+                }
+                purgeExpired(queue);
+                if (queue.remove(key) != null) {
+                    coalesced.inc();
+                } else if (queue.size() >= perDevice) {
+                    Iterator<Command> oldest = queue.values().iterator();
+                    oldest.next();
+                    oldest.remove();
+                    dropped.inc();
+                } else if (size.incrementAndGet() > total) {
+                    size.decrementAndGet();
+                    dropped.inc();
+                    mLogger.warn("Command queue is full, command to " + endpoint + " refused");
+                    return false;
+                }
+                queue.put(key, new Command(action));
+            }
+            queued.inc();
+            return true;
+        }
+    }
+
+    private void purgeExpired(LinkedHashMap<String, Command> queue) {
+        long now = System.currentTimeMillis();
+        Iterator<Command> commands = queue.values().iterator();
+        while (commands.hasNext() && now - commands.next().created > ttl) {
+            commands.remove();
+            size.decrementAndGet();
+            expired.inc();
+        }
+    }
+
+    /**
+     * Discards expired commands of every device, and the queues left empty
+     */
+    void sweep() {
+        for (Map.Entry<String, LinkedHashMap<String, Command>> entry : queues.entrySet()) {
+            LinkedHashMap<String, Command> queue = entry.getValue();
+            synchronized (queue) {
+                purgeExpired(queue);
+                if (queue.isEmpty()) {
+                    queues.remove(entry.getKey(), queue);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends every pending command of the device in order, expired ones are discarded
+     */
+    public void flush(Registration registration) {
+        flush(registration.getEndpoint(), registration);
+    }
+
+    void flush(String endpoint, Registration registration) {
+        LinkedHashMap<String, Command> queue = queues.get(endpoint);
+        if (queue == null) {
+            return;
+        }
+        List<Command> commands;
+        synchronized (queue) {
+            queues.remove(endpoint, queue);
+            purgeExpired(queue);
+            commands = new ArrayList<>(queue.values());
+            queue.clear();
+        }
+        size.addAndGet(-commands.size());
+        for (Command command : commands) {
+            flushed.inc();
+            command.action.accept(registration);
+        }
+    }
+
+    public int getPending(String endpoint) {
+        LinkedHashMap<String, Command> queue = queues.get(endpoint);
+        if (queue == null) {
+            return 0;
+        }
+        synchronized (queue) {
+            return queue.size();
+        }
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    int getDeviceCount() {
+        return queues.size();
+    }
+}
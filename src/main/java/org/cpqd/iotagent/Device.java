@@ -1,83 +1,75 @@
 package org.cpqd.iotagent;
 
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
+import com.google.common.collect.Iterables;
+import org.json.JSONObject;
 
-import java.util.LinkedList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Map;
-import java.util.Set;
 
+/*
+  A device only holds its id, references to the shared tables of its templates (see TemplateRegistry)
+  and the static values it overrides.
+ */
 public class Device {
 
-    String label;
-    String deviceId;
-    public LinkedList<DeviceAttribute> attributes;
-
-    public static LinkedList<DeviceAttribute> getAttributeListFromTemplate(JsonElement template) {
-        LinkedList<DeviceAttribute> attrList = new LinkedList<>();
-        System.out.println(template);
-
-        for (JsonElement attr : template.getAsJsonArray()) {
-            System.out.println(attr);
-            attrList.add(new DeviceAttribute(attr));
+    final String label;
+    final String deviceId;
+    final AttributeTable[] templates;
+    final Map<String, String> overrides;
+
+    public Device(JSONObject device) {
+        label = device.getString("label");
+        deviceId = device.get("id").toString();
+
+        // Attributes are grouped by template id
+        JSONObject attrs = device.getJSONObject("attrs");
+        Map<String, String> staticValues = new HashMap<>();
+        templates = new AttributeTable[attrs.length()];
+        int i = 0;
+        for (String templateId : attrs.keySet()) {
+            templates[i++] = TemplateRegistry.intern(templateId, attrs.getJSONArray(templateId), staticValues);
         }
-        return attrList;
+        overrides = staticValues.isEmpty() ? Collections.<String, String>emptyMap() : staticValues;
     }
 
-    public static LinkedList<DeviceAttribute> getAttributeList(JsonElement attrs) {
-        LinkedList<DeviceAttribute> attrList = new LinkedList<>();
-        // Get all ResourceModels for each attribute
-        JsonObject data = attrs.getAsJsonObject().get("attrs").getAsJsonObject();
-        Set<Map.Entry<String, JsonElement>> entrySet = data.entrySet();
-        for (Map.Entry<String, JsonElement> entry : entrySet) {
-            attrList.addAll(getAttributeListFromTemplate(entry.getValue()));
-        }
-        return attrList;
+    public Iterable<DeviceAttribute> getAttributes() {
+        return Iterables.concat(Arrays.asList(templates));
     }
 
-
-    public Device(JsonElement device) {
-        label = device.getAsJsonObject().get("label").getAsString();
-        deviceId = device.getAsJsonObject().get("id").getAsString();
-        attributes = new LinkedList<>();
-        // Get all ResourceModels for each attribute
-        JsonObject data = device.getAsJsonObject().get("attrs").getAsJsonObject();
-        Set<Map.Entry<String, JsonElement>> entrySet = data.entrySet();
-        for (Map.Entry<String, JsonElement> entry : entrySet) {
-            for (JsonElement attr : entry.getValue().getAsJsonArray()) {
-                System.out.println(attr);
-                attributes.add(new DeviceAttribute(attr));
+    public DeviceAttribute getAttribute(String label) {
+        for (AttributeTable template : templates) {
+            DeviceAttribute attr = template.get(label);
+            if (attr != null) {
+                return attr;
             }
         }
+        return null;
     }
 
     public String getStaticValue(String label) {
-        return getStaticValue(attributes, label);
+        String value = overrides.get(label);
+        if (value != null) {
+            return value;
+        }
+        DeviceAttribute attr = getAttribute(label);
+        return attr == null ? "" : attr.staticValue;
     }
 
 
-    public static String getStaticValue(LinkedList<DeviceAttribute> attrs, String label) {
-        for (DeviceAttribute attr : attrs) {
-            if (attr.label.equals(label)) {
-                return attr.staticValue;
+    public boolean hasTemplate(String templateId) {
+        for (DeviceAttribute attr : getAttributes()) {
+            if (templateId.equals(attr.templateId)) {
+                return true;
             }
         }
-        return "";
+        return false;
     }
 
-
     public String getTemplateId(String label) {
-        return getTemplateId(attributes, label);
-    }
-
-
-    public static String getTemplateId(LinkedList<DeviceAttribute> attrs, String label) {
-        for (DeviceAttribute attr : attrs) {
-            if (attr.label.equals(label)) {
-                return attr.templateId;
-            }
-        }
-        return "";
+        DeviceAttribute attr = getAttribute(label);
+        return attr == null ? "" : attr.templateId;
     }
 
 
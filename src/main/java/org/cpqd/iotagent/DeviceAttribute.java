@@ -1,125 +1,201 @@
 package org.cpqd.iotagent;
 
-import com.google.gson.JsonArray;
-import com.google.gson.JsonElement;
 import org.apache.commons.lang3.StringUtils;
 import org.eclipse.leshan.core.model.ResourceModel;
+import org.json.JSONArray;
+import org.json.JSONObject;
 
-import java.util.Arrays;
+import java.util.Objects;
 
 /*
   This class represents a generic attribute.
   It should be used as intermediary object when converting between device-manager and Lwm2m models
+  Instances are immutable and shared among every device using the same template (see AttributeTable)
  */
 public class DeviceAttribute {
-    String label;
-    String type;
-    String valueType;
-    String staticValue;
-    String path;
-    String templateId;
-
-    public DeviceAttribute(JsonElement json) {
-        // Regular Attributes
-        label = json.getAsJsonObject().get("label").getAsString();
-        type = json.getAsJsonObject().get("type").getAsString();
-        valueType = json.getAsJsonObject().get("value_type").getAsString();
-        if (json.getAsJsonObject().has("template_id")) {
-            templateId = json.getAsJsonObject().get("template_id").getAsString();
+
+    public enum Type {
+        STATIC(ResourceModel.Operations.R),
+        DYNAMIC(ResourceModel.Operations.R),
+        ACTUATOR(ResourceModel.Operations.RW),
+        META(ResourceModel.Operations.NONE),
+        // Not known by the agent, fine as long as the attribute is not mapped to lwm2m
+        UNKNOWN(null);
+
+        final ResourceModel.Operations operations;
+
+        Type(ResourceModel.Operations operations) {
+            this.operations = operations;
+        }
+
+        static Type parse(String type) {
+            switch (type) {
+                case "static":
+                    return STATIC;
+                case "dynamic":
+                    return DYNAMIC;
+                case "actuator":
+                    return ACTUATOR;
+                case "meta":
+                    return META;
+                default:
+                    return UNKNOWN;
+            }
+        }
+    }
+
+    public enum ValueType {
+        BOOLEAN(ResourceModel.Type.BOOLEAN),
+        STRING(ResourceModel.Type.STRING),
+        FLOAT(ResourceModel.Type.FLOAT),
+        INTEGER(ResourceModel.Type.INTEGER),
+        GEO(ResourceModel.Type.STRING),
+        // e.g. "geo:point" or "object", fine as long as the attribute is not mapped to lwm2m
+        UNKNOWN(null);
+
+        final ResourceModel.Type lwm2mType;
+
+        ValueType(ResourceModel.Type lwm2mType) {
+            this.lwm2mType = lwm2mType;
+        }
+
+        static ValueType parse(String valueType) {
+            switch (valueType) {
+                case "bool":
+                case "boolean":
+                    return BOOLEAN;
+                case "string":
+                    return STRING;
+                case "float":
+                    return FLOAT;
+                case "integer":
+                    return INTEGER;
+                case "geo":
+                    return GEO;
+                default:
+                    return UNKNOWN;
+            }
         }
+    }
 
-        if (type.equals("dynamic")) {
-            // dynamic does not have a value
-        } else if (type.equals("actuator")) {
-            // Actuator does not have a value
+    // Instance id of wildcard paths ("/3303/*/5700"), matching every instance the device has
+    public static final int ANY_INSTANCE = -1;
+
+    final String label;
+    final Type type;
+    final ValueType valueType;
+    final String staticValue;
+    // Lwm2m path as received ("" if not an lwm2m attribute) and already split into ids
+    final String path;
+    final int[] ids;
+    final String templateId;
+    // Summary published per window instead of every value, null when values are published as they come
+    final AggregationPolicy aggregation;
+
+    public DeviceAttribute(JSONObject json) {
+        // Regular Attributes
+        label = json.getString("label");
+        type = Type.parse(json.getString("type"));
+        valueType = ValueType.parse(json.getString("value_type"));
+        templateId = json.has("template_id") ? json.get("template_id").toString() : null;
+
+        if (type == Type.DYNAMIC || type == Type.ACTUATOR) {
+            // dynamic and actuator attributes do not have a value
+            staticValue = null;
+        } else if (type == Type.UNKNOWN) {
+            staticValue = json.has("static_value") ? json.get("static_value").toString() : null;
         } else {
-            staticValue = json.getAsJsonObject().get("static_value").getAsString();
+            staticValue = json.get("static_value").toString();
         }
 
         // Metadata
         path = getLwm2mPath(json);
+        ids = getIdsfromPath(path);
+        aggregation = type == Type.DYNAMIC ? AggregationPolicy.fromMetadata(json) : null;
     }
 
     public boolean isLwm2mAttr() {
-        return (!path.isEmpty());
+        return ids != null;
     }
 
 
-    public Integer[] getLwm2mPath() {
-        return getIdsfromPath(path);
+    public int[] getLwm2mPath() {
+        return ids;
     }
 
-    public static Integer[] getIdsfromPath(String path) {
+    public boolean isWildcard() {
+        return ids != null && ids.length > 2 && ids[1] == ANY_INSTANCE;
+    }
+
+    public static int[] getIdsfromPath(String path) {
         if (path == null || path.isEmpty()) {
             return null;
         }
         String[] p = StringUtils.stripStart(path, "/").split("/");
-        Integer[] result = Arrays.stream(p).map(s -> Integer.valueOf(s)).toArray(Integer[]::new);
+        int[] result = new int[p.length];
+        for (int i = 0; i < p.length; i++) {
+            result[i] = p[i].equals("*") ? ANY_INSTANCE : Integer.parseInt(p[i]);
+        }
         return result;
     }
 
 
     public ResourceModel getLwm2mResourceModel() {
-        Integer[] ids = getLwm2mPath();
         if (ids == null) {
             return null;
         }
         return getLwm2mResourceModel(ids[2]);
     }
 
+    /**
+     * IllegalArgumentException if the type or value type can't be mapped to lwm2m
+     */
     public ResourceModel getLwm2mResourceModel(int num) {
-        ResourceModel model = new ResourceModel(num, label, getOpsFor(type), false, false,
-                getTypeFor(valueType), "", "", "");
+        if (type == Type.UNKNOWN || valueType == ValueType.UNKNOWN) {
+            throw new IllegalArgumentException("Invalid type or value_type of " + label);
+        }
+        ResourceModel model = new ResourceModel(num, label, type.operations, false, false,
+                valueType.lwm2mType, "", "", "");
         return model;
     }
 
-    public static String getLwm2mPath(JsonElement json) {
-        if (!json.getAsJsonObject().has("metadata")) {
+    public static String getLwm2mPath(JSONObject json) {
+        JSONArray metadata = json.optJSONArray("metadata");
+        if (metadata == null) {
             return "";
         }
-        JsonArray obj = json.getAsJsonObject().get("metadata").getAsJsonArray();
-        for (int i = 0; i < obj.size(); i++) {
-            DeviceAttribute attr = new DeviceAttribute(obj.get(i));
-            if (attr.type.equals("lwm2m")) {
-                return attr.staticValue;
+        for (int i = 0; i < metadata.length(); i++) {
+            JSONObject meta = metadata.getJSONObject(i);
+            if ("lwm2m".equals(meta.optString("type"))) {
+                return meta.get("static_value").toString();
             }
         }
         return "";
     }
 
-    private ResourceModel.Type getTypeFor(String valueType) {
-        switch (valueType) {
-            case "bool":
-            case "boolean":
-                return ResourceModel.Type.BOOLEAN;
-            case "string":
-                return ResourceModel.Type.STRING;
-            case "float":
-                return ResourceModel.Type.FLOAT;
-            case "integer":
-                return ResourceModel.Type.INTEGER;
-            case "geo":
-                return ResourceModel.Type.STRING;
-            default:
-                throw new IllegalArgumentException("Invalid value_type " + valueType);
-        }
+    /**
+     * Same attribute definition, regardless of the static value
+     */
+    public boolean hasSameShape(DeviceAttribute other) {
+        return label.equals(other.label) && type == other.type && valueType == other.valueType
+                && path.equals(other.path) && Objects.equals(templateId, other.templateId)
+                && Objects.equals(aggregation, other.aggregation);
     }
 
-    private ResourceModel.Operations getOpsFor(String type) {
-        switch (type) {
-            case "actuator":
-                return ResourceModel.Operations.RW;
-            case "dynamic":
-                return ResourceModel.Operations.R;
-            case "static":
-                return ResourceModel.Operations.R;
-            case "meta":
-                return ResourceModel.Operations.NONE;
-            default:
-                throw new IllegalArgumentException("Invalid type " + type);
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof DeviceAttribute)) {
+            return false;
         }
+        DeviceAttribute other = (DeviceAttribute) o;
+        return hasSameShape(other) && Objects.equals(staticValue, other.staticValue);
     }
 
-
+    @Override
+    public int hashCode() {
+        return Objects.hash(label, type, valueType, staticValue, path, templateId, aggregation);
+    }
 }
-
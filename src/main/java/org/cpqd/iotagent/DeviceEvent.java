@@ -0,0 +1,95 @@
+package org.cpqd.iotagent;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/*
+  Immutable view of a device-manager event received through kafka.
+  Each message is decoded exactly once, straight from the JSONObject handed over by the kafka Manager,
+  callbacks should never go back to the raw message except to forward it.
+ */
+public class DeviceEvent {
+
+    final String event;
+    final String service;
+    final String deviceId;
+    // create / update
+    final Device device;
+    // configure
+    final Map<String, Object> actuation;
+    // template.update
+    final String templateId;
+    final String templateLabel;
+    final AttributeTable templateAttributes;
+    final List<String> affected;
+    final JSONObject message;
+
+    private DeviceEvent(String event, String service, String deviceId, Device device, Map<String, Object> actuation,
+                        String templateId, String templateLabel, AttributeTable templateAttributes, List<String> affected,
+                        JSONObject message) {
+        this.event = event;
+        this.service = service;
+        this.deviceId = deviceId;
+        this.device = device;
+        this.actuation = actuation;
+        this.templateId = templateId;
+        this.templateLabel = templateLabel;
+        this.templateAttributes = templateAttributes;
+        this.affected = affected;
+        this.message = message;
+    }
+
+    public static DeviceEvent decode(String event, JSONObject message) {
+        String service = message.getJSONObject("meta").getString("service");
+        JSONObject data = message.getJSONObject("data");
+
+        switch (event) {
+            case "create":
+            case "update": {
+                Device device = new Device(data);
+                return new DeviceEvent(event, service, device.deviceId, device, null, null, null, null, null, message);
+            }
+            case "configure": {
+                JSONObject attrs = data.getJSONObject("attrs");
+                Map<String, Object> actuation = new LinkedHashMap<>();
+                for (String label : attrs.keySet()) {
+                    actuation.put(label, attrs.get(label));
+                }
+                return new DeviceEvent(event, service, data.get("id").toString(), null,
+                        Collections.unmodifiableMap(actuation), null, null, null, null, message);
+            }
+            case "template.update": {
+                JSONObject template = data.getJSONObject("template");
+                JSONArray affectedIds = data.getJSONArray("affected");
+                List<String> affected = new LinkedList<>();
+                for (int i = 0; i < affectedIds.length(); i++) {
+                    affected.add(affectedIds.get(i).toString());
+                }
+                return new DeviceEvent(event, service, null, null, null, template.get("id").toString(),
+                        template.getString("label"),
+                        AttributeTable.fromTemplate(template.getJSONArray("attrs")),
+                        Collections.unmodifiableList(affected), message);
+            }
+            default:
+                // remove and any other event only carry the device id
+                return new DeviceEvent(event, service, data.get("id").toString(), null, null, null, null, null,
+                        null, message);
+        }
+    }
+
+    /**
+     * Events of the same device share the same key, template updates are keyed by template
+     */
+    public String getKey() {
+        if (deviceId != null) {
+            return deviceId;
+        }
+        return "template:" + templateLabel;
+    }
+}
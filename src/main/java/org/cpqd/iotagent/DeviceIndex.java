@@ -0,0 +1,175 @@
+package org.cpqd.iotagent;
+
+import org.apache.log4j.Logger;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+  Devices known to device-manager by tenant, device_type and serial_number, the keys a registering
+  client is looked up by.
+  The index is filled in bulk at startup (warm start) and kept fresh by the create, update and remove
+  events afterwards, on every node of a cluster. Registrations arriving while it is being filled wait for
+  it instead of querying device-manager one by one. Anything not in the index is still looked up
+  individually. Entries expire after a ttl, so a change the index missed is only served for that long and
+  devices that stopped registering do not stay forever.
+ */
+public class DeviceIndex {
+    private Logger mLogger = Logger.getLogger(DeviceIndex.class);
+
+    // Expired entries are purged every SWEEP_INTERVAL insertions
+    private static final int SWEEP_INTERVAL = 1024;
+    private static long ttl = 600000;
+
+    private final Map<String, Entry> devices = new ConcurrentHashMap<>();
+    // Index key of each device id, to find entries on remove
+    private final Map<String, String> keys = new ConcurrentHashMap<>();
+    // Devices removed while the warm start runs, the pages read before may still list them
+    private final Set<String> removed = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private volatile CountDownLatch warm = new CountDownLatch(0);
+    private volatile boolean warming;
+    private final AtomicInteger puts = new AtomicInteger();
+
+    private static class Entry {
+        final Device device;
+        final long expires;
+
+        Entry(Device device, long expires) {
+            this.device = device;
+            this.expires = expires;
+        }
+    }
+
+    private static final AgentMetrics.Counter hits =
+            AgentMetrics.counter("device_index_hits_total", "Registrations resolved from the device index");
+    private static final AgentMetrics.Counter misses = AgentMetrics.counter("device_index_misses_total",
+            "Registrations looked up in device-manager because the index did not have them");
+
+    public DeviceIndex() {
+        AgentMetrics.gauge("device_index_size", "Devices in the warm start index", devices::size);
+    }
+
+    public static void setTtl(long ttlMs) {
+        ttl = ttlMs;
+    }
+
+    /**
+     * Makes lookups wait for the warm start, to be called before devices can register
+     */
+    public void beginWarmUp() {
+        warming = true;
+        warm = new CountDownLatch(1);
+    }
+
+    /**
+     * Pages through the devices of every tenant, registrations wait for this to finish
+     */
+    public void warmUp(DeviceManager deviceManager, List<String> tenants, int pageSize) {
+        long start = System.currentTimeMillis();
+        try {
+            for (String service : tenants) {
+                int page = 1;
+                while (page > 0) {
+                    JSONObject body = deviceManager.ListDevices(service, page, pageSize);
+                    if (body == null) {
+                        mLogger.warn("Warm start of " + service + " stopped at page " + page);
+                        break;
+                    }
+                    JSONArray list = body.getJSONArray("devices");
+                    for (int i = 0; i < list.length(); i++) {
+                        try {
+                            load(service, new Device(list.getJSONObject(i)));
+                        } catch (Exception e) {
+                            mLogger.warn("Skipping device in warm start: " + e.getMessage());
+                        }
+                    }
+                    JSONObject pagination = body.optJSONObject("pagination");
+                    page = pagination != null && pagination.optBoolean("has_next") ? page + 1 : 0;
+                }
+            }
+            mLogger.info(String.format("Device index warmed with %d devices in %d ms", devices.size(),
+                    System.currentTimeMillis() - start));
+        } finally {
+            warming = false;
+            removed.clear();
+            warm.countDown();
+        }
+    }
+
+    /**
+     * The device registered as this device_type and serial_number, or null when the caller has to ask
+     * device-manager. Waits up to timeout milliseconds for a warm start in progress
+     */
+    public Device get(String service, String deviceType, String serialNumber, long timeout) {
+        try {
+            warm.await(timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Entry entry = devices.get(key(service, deviceType, serialNumber));
+        if (entry != null && entry.expires > System.currentTimeMillis()) {
+            hits.inc();
+            return entry.device;
+        }
+        misses.inc();
+        return null;
+    }
+
+    /**
+     * Stores a device from a create or update event, or from an individual lookup
+     */
+    public void put(String service, Device device) {
+        String key = key(service, device.getStaticValue("device_type"), device.getStaticValue("serial_number"));
+        String previous = keys.put(device.deviceId, key);
+        if (previous != null && !previous.equals(key)) {
+            devices.remove(previous);
+        }
+        devices.put(key, new Entry(device, System.currentTimeMillis() + ttl));
+        if (puts.incrementAndGet() % SWEEP_INTERVAL == 0) {
+            sweep();
+        }
+    }
+
+    public void remove(String deviceId) {
+        if (warming) {
+            removed.add(deviceId);
+        }
+        String key = keys.remove(deviceId);
+        if (key != null) {
+            devices.remove(key);
+        }
+    }
+
+    public int size() {
+        return devices.size();
+    }
+
+    private void sweep() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Entry> entry : devices.entrySet()) {
+            if (entry.getValue().expires <= now && devices.remove(entry.getKey(), entry.getValue())) {
+                keys.remove(entry.getValue().device.deviceId, entry.getKey());
+            }
+        }
+    }
+
+    // Events received during the warm start are newer than the pages
+    private void load(String service, Device device) {
+        if (removed.contains(device.deviceId) || keys.containsKey(device.deviceId)) {
+            return;
+        }
+        put(service, device);
+    }
+
+    private static String key(String service, String deviceType, String serialNumber) {
+        return service + '\n' + deviceType + '\n' + serialNumber;
+    }
+}
@@ -0,0 +1,80 @@
+package org.cpqd.iotagent;
+
+/*
+  Round trip time estimator of a single device, used to derive request timeouts and retry budgets.
+  Follows the RFC 6298 estimator (as CoAP CoCoA does): smoothed RTT and RTT variation, with the timeout
+  backed off on every timeout and reset by the next answer.
+ */
+public class DeviceLatencyProfile {
+    public static final long INITIAL_TIMEOUT = 5000;
+    public static final long MIN_TIMEOUT = 1000;
+    public static final long MAX_TIMEOUT = 60000;
+
+    private final boolean queueMode;
+    private double srtt = -1;
+    private double rttvar;
+    private long timeout = INITIAL_TIMEOUT;
+    private int consecutiveTimeouts;
+    private volatile long lastSeen = System.currentTimeMillis();
+
+    public DeviceLatencyProfile(boolean queueMode) {
+        this.queueMode = queueMode;
+    }
+
+    public synchronized void onResponse(long rttMs) {
+        if (srtt < 0) {
+            srtt = rttMs;
+            rttvar = rttMs / 2.0;
+        } else {
+            rttvar = 0.75 * rttvar + 0.25 * Math.abs(srtt - rttMs);
+            srtt = 0.875 * srtt + 0.125 * rttMs;
+        }
+        timeout = clamp((long) (srtt + 4 * rttvar));
+        consecutiveTimeouts = 0;
+        lastSeen = System.currentTimeMillis();
+    }
+
+    public synchronized void onTimeout() {
+        consecutiveTimeouts++;
+        timeout = clamp(timeout * 2);
+    }
+
+    public synchronized long getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Extra attempts allowed for a request, devices that stopped answering get none
+     */
+    public synchronized int getRetryBudget() {
+        if (consecutiveTimeouts == 0) {
+            return 2;
+        }
+        return consecutiveTimeouts < 3 ? 1 : 0;
+    }
+
+    /**
+     * The device sent a registration or update
+     */
+    public void onSeen() {
+        lastSeen = System.currentTimeMillis();
+        synchronized (this) {
+            consecutiveTimeouts = 0;
+        }
+    }
+
+    /**
+     * Queue mode devices only listen for a while after contacting the server
+     */
+    public boolean isAwake(long awakeWindowMs) {
+        return !queueMode || System.currentTimeMillis() - lastSeen < awakeWindowMs;
+    }
+
+    public synchronized long getSmoothedRtt() {
+        return (long) Math.max(0, srtt);
+    }
+
+    private static long clamp(long value) {
+        return Math.max(MIN_TIMEOUT, Math.min(MAX_TIMEOUT, value));
+    }
+}
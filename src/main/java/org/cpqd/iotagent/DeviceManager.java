@@ -2,9 +2,7 @@ package org.cpqd.iotagent;
 
 import com.google.common.collect.BiMap;
 import com.google.common.collect.HashBiMap;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
+import com.google.common.collect.Maps;
 import com.mashape.unirest.http.HttpResponse;
 import com.mashape.unirest.http.JsonNode;
 import com.mashape.unirest.http.Unirest;
@@ -17,6 +15,7 @@ import org.json.JSONArray;
 import org.json.JSONObject;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class DeviceManager {
     private Logger mLogger = Logger.getLogger(DeviceManager.class);
@@ -24,10 +23,23 @@ public class DeviceManager {
     private String deviceUrl;
     private String templateUrl;
     private DinamicModelProvider modelProvider;
-    private BiMap<String, String> paths2labels = HashBiMap.create();
-    private Map<String, Registration> Devices = new HashMap<String, Registration>();
-    private Map<String, String> Lwm2mDevices = new HashMap<String, String>();
-    private Map<String, String> deviceService = new HashMap<String, String>();
+    private BiMap<String, String> paths2labels = Maps.synchronizedBiMap(HashBiMap.<String, String>create());
+    private Map<String, Registration> Devices = new ConcurrentHashMap<String, Registration>();
+    private Map<String, Device> deviceRecords = new ConcurrentHashMap<String, Device>();
+    private Map<String, String> Lwm2mDevices = new ConcurrentHashMap<String, String>();
+    private Map<String, String> deviceService = new ConcurrentHashMap<String, String>();
+    // LwM2M type of each attribute path, resolved once when its template is registered
+    private Map<String, ResourceModel.Type> pathTypes = new ConcurrentHashMap<String, ResourceModel.Type>();
+    // Labels of wildcard attributes by object id and resource id
+    private Map<Integer, Map<Integer, String>> wildcardLabels = new ConcurrentHashMap<Integer, Map<Integer, String>>();
+
+    private static final AgentMetrics.Histogram backendLatency = AgentMetrics.histogram("http_backend_seconds",
+            "backend=\"device-manager\"", "Latency of HTTP requests to dojot services");
+    private static final AgentMetrics.Counter backendErrors = AgentMetrics.counter("http_backend_errors_total",
+            "backend=\"device-manager\"", "HTTP requests to dojot services that failed");
+    // Templates whose attributes were already merged into the model provider, dropped with their last device
+    private Set<AttributeTable> registeredTemplates =
+            Collections.newSetFromMap(new WeakHashMap<AttributeTable, Boolean>());
 
 
 
@@ -54,18 +66,28 @@ public class DeviceManager {
 
 
 
-    public void RegisterModel(Device device) {
+    public synchronized void RegisterModel(Device device) {
         Map<Integer, LinkedList<ResourceModel>> newModels = new HashMap<Integer, LinkedList<ResourceModel>>();
-        LinkedList<ResourceModel> resources;
 
         String deviceLabel = device.label;
+        List<DeviceAttribute> newAttributes = new ArrayList<DeviceAttribute>();
 
-        // Generate a map with new Object models
-        for (DeviceAttribute attr : device.attributes) {
-            if (attr.isLwm2mAttr()) {
+        // Generate a map with new Object models, each template is only processed once
+        for (AttributeTable template : device.templates) {
+            if (!registeredTemplates.add(template)) {
+                continue;
+            }
+            for (DeviceAttribute attr : template) {
+                if (!attr.isLwm2mAttr()) {
+                    continue;
+                }
                 paths2labels.put(attr.path, attr.label);
-                ResourceModel attrModel = attr.getLwm2mResourceModel();
+                newAttributes.add(attr);
                 int objectId = attr.getLwm2mPath()[0];
+                if (attr.isWildcard()) {
+                    wildcardLabels.computeIfAbsent(objectId, id -> new ConcurrentHashMap<Integer, String>())
+                            .put(attr.getLwm2mPath()[2], attr.label);
+                }
 
                 // If object model does not exist in map initialize
                 if (!newModels.containsKey(objectId)) {
@@ -113,35 +135,72 @@ public class DeviceManager {
 //                modelProvider.addObjectModel(objectModel);
 //            }
         }
+
+        // Known objects keep their standard resource types, see UpdateModel
+        LwM2mModel model = modelProvider.getObjectModel(null);
+        for (DeviceAttribute attr : newAttributes) {
+            int[] ids = attr.getLwm2mPath();
+            ResourceModel resource = ids.length > 2 ? model.getResourceModel(ids[0], ids[2]) : null;
+            pathTypes.put(attr.path, resource != null ? resource.type : attr.valueType.lwm2mType);
+        }
     }
 
 
     /**
-     * Retrieves device data from device-manager based on the serial number, if no device is found returns null
+     * Retrieves device data from device-manager based on the serial number, if no device is found returns null.
+     * IllegalStateException if device-manager could not answer, the device may exist
      */
-    public JsonElement GetDeviceFromDeviceManager(String service, String deviceModel, String serialNumber) {
+    public JSONObject GetDeviceFromDeviceManager(String service, String deviceModel, String serialNumber) {
         String token = TenancyManager.GetJwtToken(service);
         String query = "?attr=device_type=" + deviceModel + "&attr=serial_number=" + serialNumber;
         String url = this.deviceUrl + query;
 
+        long start = System.nanoTime();
         try {
-            HttpResponse<JsonNode> response = Unirest.get(url).header("Authorization", "Bearer " + token).asJson();
+            HttpResponse<JsonNode> response = BackendLimit.of(BackendLimit.DEVICE_MANAGER)
+                    .call(() -> Unirest.get(url).header("Authorization", "Bearer " + token).asJson());
+            backendLatency.observeSince(start);
             if (response.getStatus() >= 300) {
-                return null;
+                backendErrors.inc();
+                throw new IllegalStateException("device-manager answered " + response.getStatus());
             }
             JsonNode r = response.getBody();
             JSONArray devices = r.getObject().getJSONArray("devices");
             if (devices.length() == 0) {
                 return null;
             }
-            JSONObject device = devices.getJSONObject(0);
-            JsonParser jsonParser = new JsonParser();
-            JsonObject gsonDevice = (JsonObject) jsonParser.parse(device.toString());
-            return gsonDevice;
+            return devices.getJSONObject(0);
+
+        } catch (IllegalStateException e) {
+            throw e;
+        } catch (Exception e) {
+            backendErrors.inc();
+            mLogger.error("Unable to look up device " + serialNumber + " in device-manager", e);
+            throw new IllegalStateException("Unable to look up device " + serialNumber, e);
+        }
+    }
+
+    /**
+     * One page of the devices of a tenant, the body holds "devices" and "pagination". Returns null on failure
+     */
+    public JSONObject ListDevices(String service, int page, int pageSize) {
+        String token = TenancyManager.GetJwtToken(service);
+        String url = this.deviceUrl + "?page_num=" + page + "&page_size=" + pageSize;
+
+        long start = System.nanoTime();
+        try {
+            HttpResponse<JsonNode> response = BackendLimit.of(BackendLimit.DEVICE_MANAGER)
+                    .call(() -> Unirest.get(url).header("Authorization", "Bearer " + token).asJson());
+            backendLatency.observeSince(start);
+            if (response.getStatus() >= 300) {
+                backendErrors.inc();
+                return null;
+            }
+            return response.getBody().getObject();
 
         } catch (Exception e) {
-            e.printStackTrace();
-            mLogger.error(e);
+            backendErrors.inc();
+            mLogger.error("Unable to list the devices of " + service + ", page " + page, e);
         }
         return null;
     }
@@ -151,9 +210,13 @@ public class DeviceManager {
         String query = "?attr=template_id=" + templateId;
         String url = this.templateUrl + query;
 
+        long start = System.nanoTime();
         try {
-            HttpResponse<JsonNode> response = Unirest.get(url).header("Authorization", "Bearer " + token).asJson();
+            HttpResponse<JsonNode> response = BackendLimit.of(BackendLimit.DEVICE_MANAGER)
+                    .call(() -> Unirest.get(url).header("Authorization", "Bearer " + token).asJson());
+            backendLatency.observeSince(start);
             if (response.getStatus() >= 300) {
+                backendErrors.inc();
                 return null;
             }
             JsonNode r = response.getBody();
@@ -167,8 +230,8 @@ public class DeviceManager {
             return label;
 
         } catch (Exception e) {
-            e.printStackTrace();
-            mLogger.error(e);
+            backendErrors.inc();
+            mLogger.error("Unable to get the label of template " + templateId, e);
         }
         return null;
     }
@@ -177,14 +240,36 @@ public class DeviceManager {
     public void RegisterDevice(Device device, String service, String lwm2mId, String deviceModel, String serialNumber, Registration registration) {
         RegisterModel(device);
         Devices.put(device.deviceId, registration);
+        deviceRecords.put(device.deviceId, device);
         Lwm2mDevices.put(lwm2mId, device.deviceId);
+        deviceService.put(device.deviceId, service);
         mLogger.debug(device.deviceId);
     }
 
+    /**
+     * Keeps the stored registration current after a registration update, returns false for unknown devices
+     */
+    public boolean UpdateRegistration(Registration registration) {
+        String deviceId = Lwm2mDevices.get(registration.getId());
+        if (deviceId == null) {
+            return false;
+        }
+        Devices.put(deviceId, registration);
+        return true;
+    }
+
+    public int getDeviceCount() {
+        return Devices.size();
+    }
+
     public Registration getDeviceRegistration(String id) {
         return Devices.get(id);
     }
 
+    public Device getDevice(String id) {
+        return deviceRecords.get(id);
+    }
+
     public Registration getLwm2mRegistration(String id) {
         return Devices.get(Lwm2mDevices.get(id));
     }
@@ -194,22 +279,45 @@ public class DeviceManager {
     }
 
     public void DeregisterDevice(String lwm2mId) {
-        String deviceId = Lwm2mDevices.get(lwm2mId);
+        String deviceId = Lwm2mDevices.remove(lwm2mId);
+        if (deviceId == null) {
+            return;
+        }
         Devices.remove(deviceId);
-        Lwm2mDevices.remove(lwm2mId);
+        deviceRecords.remove(deviceId);
+        deviceService.remove(deviceId);
+    }
+
+    /**
+     * Ids of the devices registered on this node
+     */
+    public Set<String> getConnectedDeviceIds() {
+        return Collections.unmodifiableSet(Devices.keySet());
     }
 
     public String getLabelFromPath(String path) {
         return paths2labels.get(path);
     }
 
-    public Integer[] getPathFromLabel(String label) {
+    /**
+     * Labels of the wildcard attributes of an object, by resource id
+     */
+    public Map<Integer, String> getWildcardLabels(int objectId) {
+        Map<Integer, String> labels = wildcardLabels.get(objectId);
+        return labels == null ? Collections.<Integer, String>emptyMap() : labels;
+    }
+
+    public int[] getPathFromLabel(String label) {
         String path = paths2labels.inverse().get(label);
         return DeviceAttribute.getIdsfromPath(path);
     }
 
+    public ResourceModel.Type getTypeFromLabel(String label) {
+        String path = paths2labels.inverse().get(label);
+        return path == null ? null : pathTypes.get(path);
+    }
+
     public String getDeviceService(String deviceId){
-        // TODO(jsiloto): implement deviceService populate mechanism
         return deviceService.get(deviceId);
     }
 
@@ -0,0 +1,25 @@
+package org.cpqd.iotagent;
+
+import org.eclipse.californium.scandium.dtls.pskstore.InMemoryPskStore;
+
+/*
+  Scandium PSK store of the firmware file server, sharing the device credentials of the LwM2M endpoint.
+  Keys added locally (setKey) take precedence over device-manager ones.
+ */
+public class DevicePskStore extends InMemoryPskStore {
+    private final DeviceSecurityStore store;
+
+    private static final AgentMetrics.Counter handshakes = AgentMetrics.counter("dtls_full_handshakes_total",
+            "server=\"fileserver\"", "DTLS handshakes that needed a key, resumed sessions are not counted");
+
+    public DevicePskStore(DeviceSecurityStore store) {
+        this.store = store;
+    }
+
+    @Override
+    public byte[] getKey(String identity) {
+        handshakes.inc();
+        byte[] key = super.getKey(identity);
+        return key != null ? key : store.getPreSharedKey(identity);
+    }
+}
@@ -0,0 +1,149 @@
+package org.cpqd.iotagent;
+
+import com.google.common.base.Optional;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.mashape.unirest.http.HttpResponse;
+import com.mashape.unirest.http.JsonNode;
+import com.mashape.unirest.http.Unirest;
+import org.apache.log4j.Logger;
+import org.eclipse.leshan.server.security.SecurityInfo;
+import org.eclipse.leshan.server.security.SecurityStore;
+import org.eclipse.leshan.util.Hex;
+import org.json.JSONArray;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/*
+  DTLS pre-shared keys of the devices, loaded from device-manager on first use and kept in a bounded cache.
+  A device is expected to have the static attributes psk_identity (also its LwM2M endpoint name) and
+  psk_key (hex). Devices without them are cached as unknown too, so a client retrying a handshake
+  does not hit device-manager every time.
+ */
+public class DeviceSecurityStore implements SecurityStore {
+    private Logger mLogger = Logger.getLogger(DeviceSecurityStore.class);
+
+    public static final String IDENTITY_ATTR = "psk_identity";
+    public static final String KEY_ATTR = "psk_key";
+
+    private String deviceUrl;
+    private Cache<String, Optional<SecurityInfo>> credentials;
+
+    private static final AgentMetrics.Counter cacheHits =
+            AgentMetrics.counter("dtls_credential_cache_hits_total", "PSK lookups answered from the cache");
+    private static final AgentMetrics.Counter cacheMisses =
+            AgentMetrics.counter("dtls_credential_cache_misses_total", "PSK lookups that queried device-manager");
+    private static final AgentMetrics.Counter handshakes = AgentMetrics.counter("dtls_full_handshakes_total",
+            "server=\"lwm2m\"", "DTLS handshakes that needed a key, resumed sessions are not counted");
+    private static final AgentMetrics.Histogram lookupLatency = AgentMetrics.histogram(
+            "dtls_credential_lookup_seconds", "Time to find the credentials of a device, cache included");
+    private static final AgentMetrics.Histogram backendLatency = AgentMetrics.histogram("http_backend_seconds",
+            "backend=\"device-manager\"", "Latency of HTTP requests to dojot services");
+    private static final AgentMetrics.Counter backendErrors = AgentMetrics.counter("http_backend_errors_total",
+            "backend=\"device-manager\"", "HTTP requests to dojot services that failed");
+
+    public DeviceSecurityStore(String deviceManagerUrl, long maxDevices, long ttlMs) {
+        this.deviceUrl = deviceManagerUrl + "/device";
+        this.credentials = CacheBuilder.newBuilder()
+                .maximumSize(maxDevices)
+                .expireAfterWrite(ttlMs, TimeUnit.MILLISECONDS)
+                .build();
+    }
+
+    @Override
+    public SecurityInfo getByEndpoint(String endpoint) {
+        return lookup(endpoint);
+    }
+
+    @Override
+    public SecurityInfo getByIdentity(String pskIdentity) {
+        // Only asked for by the PSK key exchange
+        handshakes.inc();
+        return lookup(pskIdentity);
+    }
+
+    /**
+     * Key of a device for other DTLS endpoints (the firmware file server), null if unknown
+     */
+    public byte[] getPreSharedKey(String identity) {
+        SecurityInfo info = lookup(identity);
+        return info == null ? null : info.getPreSharedKey();
+    }
+
+    /**
+     * Drops the cached credentials, e.g. after the device was updated
+     */
+    public void invalidate(String identity) {
+        credentials.invalidate(identity);
+    }
+
+    private SecurityInfo lookup(final String identity) {
+        long start = System.nanoTime();
+        try {
+            Optional<SecurityInfo> info = credentials.getIfPresent(identity);
+            if (info != null) {
+                cacheHits.inc();
+                return info.orNull();
+            }
+            cacheMisses.inc();
+            return credentials.get(identity, new Callable<Optional<SecurityInfo>>() {
+                @Override
+                public Optional<SecurityInfo> call() throws Exception {
+                    return Optional.fromNullable(fetch(identity));
+                }
+            }).orNull();
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            // Not cached, the next handshake tries again
+            mLogger.error("Unable to fetch credentials of " + identity, e.getCause());
+            return null;
+        } finally {
+            lookupLatency.observeSince(start);
+        }
+    }
+
+    /**
+     * Returns null if the device is unknown or has no key, throws if device-manager could not be queried
+     */
+    private SecurityInfo fetch(String identity) throws Exception {
+        String token = TenancyManager.GetJwtToken("admin");
+
+        long start = System.nanoTime();
+        HttpResponse<JsonNode> response;
+        try {
+            response = BackendLimit.of(BackendLimit.DEVICE_MANAGER)
+                    .call(() -> Unirest.get(deviceUrl)
+                            .queryString("attr", IDENTITY_ATTR + "=" + identity)
+                            .header("Authorization", "Bearer " + token)
+                            .asJson());
+            backendLatency.observeSince(start);
+        } catch (Exception e) {
+            backendErrors.inc();
+            throw e;
+        }
+        if (response.getStatus() >= 300) {
+            backendErrors.inc();
+            throw new IllegalStateException("device-manager answered " + response.getStatus());
+        }
+        // The attribute filter of device-manager is not an exact match everywhere, the identity is checked here
+        JSONArray devices = response.getBody().getObject().getJSONArray("devices");
+        Device device = null;
+        for (int i = 0; i < devices.length() && device == null; i++) {
+            Device candidate = new Device(devices.getJSONObject(i));
+            if (identity.equals(candidate.getStaticValue(IDENTITY_ATTR))) {
+                device = candidate;
+            }
+        }
+        if (device == null) {
+            return null;
+        }
+        String key = device.getStaticValue(KEY_ATTR);
+        if (key == null || key.isEmpty()) {
+            mLogger.debug("Device " + identity + " has no " + KEY_ATTR);
+            return null;
+        }
+        return SecurityInfo.newPreSharedKeyInfo(identity, identity, Hex.decodeHex(key.toCharArray()));
+    }
+}
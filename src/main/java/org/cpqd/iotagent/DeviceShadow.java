@@ -0,0 +1,158 @@
+package org.cpqd.iotagent;
+
+import org.eclipse.leshan.core.node.LwM2mNode;
+import org.eclipse.leshan.core.node.LwM2mObject;
+import org.eclipse.leshan.core.node.LwM2mObjectInstance;
+import org.eclipse.leshan.core.node.LwM2mPath;
+import org.eclipse.leshan.core.node.LwM2mResource;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+  Last value observed or read of each resource of a registration, with the time it was received.
+  Values are kept as published (see ValueCodec.toJson), in flat arrays per registration indexed by the
+  resource path packed in a long, so a device costs a few arrays rather than an entry object per resource.
+ */
+public class DeviceShadow {
+
+    private final Map<String, Values> shadows = new ConcurrentHashMap<>();
+
+    private static final AgentMetrics.Counter hits = AgentMetrics.counter("shadow_reads_total",
+            "result=\"hit\"", "Reads served from the device shadow");
+    private static final AgentMetrics.Counter misses = AgentMetrics.counter("shadow_reads_total",
+            "result=\"miss\"", "Reads served from the device shadow");
+
+    private static class Values {
+        long[] paths = new long[8];
+        long[] times = new long[8];
+        Object[] values = new Object[8];
+        int size;
+
+        int indexOf(long path) {
+            for (int i = 0; i < size; i++) {
+                if (paths[i] == path) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        void put(long path, Object value, long time) {
+            int i = indexOf(path);
+            if (i < 0) {
+                if (size == paths.length) {
+                    paths = Arrays.copyOf(paths, size * 2);
+                    times = Arrays.copyOf(times, size * 2);
+                    values = Arrays.copyOf(values, size * 2);
+                }
+                i = size++;
+                paths[i] = path;
+            }
+            values[i] = value;
+            times[i] = time;
+        }
+
+        void remove(long path) {
+            int i = indexOf(path);
+            if (i >= 0) {
+                size--;
+                paths[i] = paths[size];
+                times[i] = times[size];
+                values[i] = values[size];
+                values[size] = null;
+            }
+        }
+    }
+
+    /**
+     * Stores the resources in a notification or read response, whether a resource, an instance or an object
+     */
+    public void update(String registrationId, LwM2mPath path, LwM2mNode node) {
+        long now = System.currentTimeMillis();
+        Values shadow = shadows.computeIfAbsent(registrationId, id -> new Values());
+        synchronized (shadow) {
+            if (node instanceof LwM2mResource && path.isResource()) {
+                put(shadow, path.getObjectId(), path.getObjectInstanceId(), (LwM2mResource) node, now);
+            } else if (node instanceof LwM2mObjectInstance && path.getObjectInstanceId() != null) {
+                put(shadow, path.getObjectId(), (LwM2mObjectInstance) node, now);
+            } else if (node instanceof LwM2mObject) {
+                for (LwM2mObjectInstance instance : ((LwM2mObject) node).getInstances().values()) {
+                    put(shadow, path.getObjectId(), instance, now);
+                }
+            }
+        }
+    }
+
+    /**
+     * The value of the resource if it was received less than maxAge milliseconds ago, null otherwise
+     */
+    public Object get(String registrationId, int objectId, int instanceId, int resourceId, long maxAge) {
+        Values shadow = shadows.get(registrationId);
+        if (shadow != null) {
+            synchronized (shadow) {
+                int i = shadow.indexOf(pack(objectId, instanceId, resourceId));
+                if (i >= 0 && System.currentTimeMillis() - shadow.times[i] < maxAge) {
+                    hits.inc();
+                    return shadow.values[i];
+                }
+            }
+        }
+        misses.inc();
+        return null;
+    }
+
+    /**
+     * Drops a value the device no longer holds, e.g. after writing the resource
+     */
+    public void invalidate(String registrationId, int objectId, int instanceId, int resourceId) {
+        Values shadow = shadows.get(registrationId);
+        if (shadow != null) {
+            synchronized (shadow) {
+                shadow.remove(pack(objectId, instanceId, resourceId));
+            }
+        }
+    }
+
+    public void forget(String registrationId) {
+        shadows.remove(registrationId);
+    }
+
+    /**
+     * Every value of the registration by path, with its timestamp: {"/3/0/3": {"value": "1.0", "ts": 1530000000000}}
+     */
+    public JSONObject toJson(String registrationId) {
+        JSONObject json = new JSONObject();
+        Values shadow = shadows.get(registrationId);
+        if (shadow == null) {
+            return json;
+        }
+        synchronized (shadow) {
+            for (int i = 0; i < shadow.size; i++) {
+                long path = shadow.paths[i];
+                String key = "/" + (path >>> 32) + "/" + ((path >>> 16) & 0xffff) + "/" + (path & 0xffff);
+                json.put(key, new JSONObject().put("value", shadow.values[i]).put("ts", shadow.times[i]));
+            }
+        }
+        return json;
+    }
+
+    private static void put(Values shadow, int objectId, LwM2mObjectInstance instance, long now) {
+        for (LwM2mResource resource : instance.getResources().values()) {
+            put(shadow, objectId, instance.getId(), resource, now);
+        }
+    }
+
+    private static void put(Values shadow, int objectId, int instanceId, LwM2mResource resource, long now) {
+        Object value = ValueCodec.toJson(resource);
+        if (value != null) {
+            shadow.put(pack(objectId, instanceId, resource.getId()), value, now);
+        }
+    }
+
+    private static long pack(int objectId, int instanceId, int resourceId) {
+        return ((long) objectId << 32) | ((long) (instanceId & 0xffff) << 16) | (resourceId & 0xffff);
+    }
+}
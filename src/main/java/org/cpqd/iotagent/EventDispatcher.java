@@ -0,0 +1,106 @@
+package org.cpqd.iotagent;
+
+import org.apache.log4j.Logger;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+  Moves device events off the Kafka consumer thread.
+  Events are hashed by device id into ordered lanes, each lane is served by a single worker, so events
+  of one device keep their order while different devices are processed in parallel.
+  When a lane is full the submitting thread blocks, which stops the consumer from polling further.
+ */
+public class EventDispatcher {
+    private Logger mLogger = Logger.getLogger(EventDispatcher.class);
+
+    private static final long REJECT_RETRY = 100;
+
+    private ThreadPoolExecutor[] lanes;
+    private AtomicLong submitted = new AtomicLong();
+    private AtomicLong completed = new AtomicLong();
+
+    public EventDispatcher(int laneCount, int laneCapacity) {
+        this("event-lane", laneCount, laneCapacity);
+    }
+
+    public EventDispatcher(String name, int laneCount, int laneCapacity) {
+        lanes = new ThreadPoolExecutor[laneCount];
+        // Virtual threads when enabled, see Workers
+        ThreadFactory threads = Workers.threadFactory(name);
+        for (int i = 0; i < laneCount; i++) {
+            BlockingQueue<Runnable> queue = new ArrayBlockingQueue<>(laneCapacity);
+            lanes[i] = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, queue, threads,
+                    (r, executor) -> {
+                        try {
+                            // Waits for room in the lane, unless it is being drained and will never have any
+                            while (!executor.isShutdown()) {
+                                if (executor.getQueue().offer(r, REJECT_RETRY, TimeUnit.MILLISECONDS)) {
+                                    return;
+                                }
+                            }
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        mLogger.warn("Event dropped, the dispatcher is stopping");
+                        completed.incrementAndGet();
+                    });
+        }
+    }
+
+    public int getLaneCount() {
+        return lanes.length;
+    }
+
+    private int laneFor(String deviceId) {
+        if (deviceId == null) {
+            return 0;
+        }
+        return (deviceId.hashCode() & Integer.MAX_VALUE) % lanes.length;
+    }
+
+    public void dispatch(String deviceId, Runnable event) {
+        submitted.incrementAndGet();
+        lanes[laneFor(deviceId)].execute(() -> {
+            try {
+                event.run();
+            } catch (Exception e) {
+                mLogger.error("Unable to process event of " + deviceId, e);
+            } finally {
+                completed.incrementAndGet();
+            }
+        });
+    }
+
+    /**
+     * Number of events accepted from the consumer but not processed yet
+     */
+    public long getLag() {
+        return submitted.get() - completed.get();
+    }
+
+    public int getQueueDepth(int lane) {
+        return lanes[lane].getQueue().size();
+    }
+
+    public long getProcessedCount() {
+        return completed.get();
+    }
+
+    /**
+     * Stops accepting events and waits for the queued ones to be processed
+     */
+    public void drain(long timeoutMs) throws InterruptedException {
+        for (ThreadPoolExecutor lane : lanes) {
+            lane.shutdown();
+        }
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        for (ThreadPoolExecutor lane : lanes) {
+            lane.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package org.cpqd.iotagent;
+
+import org.eclipse.leshan.core.model.ResourceModel;
+import org.eclipse.leshan.core.node.LwM2mNode;
+import org.eclipse.leshan.core.node.LwM2mPath;
+import org.eclipse.leshan.core.node.LwM2mSingleResource;
+import org.eclipse.leshan.core.node.TimestampedLwM2mNode;
+import org.eclipse.leshan.core.node.codec.CodecException;
+import org.eclipse.leshan.core.node.codec.DefaultLwM2mNodeDecoder;
+import org.eclipse.leshan.core.node.codec.LwM2mNodeDecoder;
+import org.eclipse.leshan.core.model.LwM2mModel;
+import org.eclipse.leshan.core.request.ContentFormat;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.List;
+
+/*
+  Decoder for the payloads we receive most: a single resource notification in TLV or plain text.
+  The value is read straight from the payload, without the intermediate Tlv array of the default
+  decoder. Anything else (instances, multiple resources, JSON, object links) goes to the default decoder.
+ */
+public class FastNodeDecoder implements LwM2mNodeDecoder {
+    private final LwM2mNodeDecoder fallback;
+
+    public FastNodeDecoder() {
+        this(new DefaultLwM2mNodeDecoder());
+    }
+
+    public FastNodeDecoder(LwM2mNodeDecoder fallback) {
+        this.fallback = fallback;
+    }
+
+    @Override
+    public LwM2mNode decode(byte[] content, ContentFormat format, LwM2mPath path, LwM2mModel model)
+            throws CodecException {
+        LwM2mNode node = decodeResource(content, format, path, model);
+        return node != null ? node : fallback.decode(content, format, path, model);
+    }
+
+    @Override
+    public <T extends LwM2mNode> T decode(byte[] content, ContentFormat format, LwM2mPath path, LwM2mModel model,
+                                          Class<T> nodeClass) throws CodecException {
+        if (nodeClass.isAssignableFrom(LwM2mSingleResource.class)) {
+            LwM2mNode node = decodeResource(content, format, path, model);
+            if (node != null) {
+                return nodeClass.cast(node);
+            }
+        }
+        return fallback.decode(content, format, path, model, nodeClass);
+    }
+
+    @Override
+    public List<TimestampedLwM2mNode> decodeTimestampedData(byte[] content, ContentFormat format, LwM2mPath path,
+                                                            LwM2mModel model) throws CodecException {
+        return fallback.decodeTimestampedData(content, format, path, model);
+    }
+
+    @Override
+    public boolean isSupported(ContentFormat format) {
+        return fallback.isSupported(format);
+    }
+
+    /**
+     * Returns null if the payload is not a single resource this decoder handles
+     */
+    private LwM2mSingleResource decodeResource(byte[] content, ContentFormat format, LwM2mPath path,
+                                               LwM2mModel model) {
+        if (content == null || !path.isResource()) {
+            return null;
+        }
+        ResourceModel resourceModel = model.getResourceModel(path.getObjectId(), path.getResourceId());
+        if (resourceModel == null || resourceModel.multiple || resourceModel.type == ResourceModel.Type.OBJLNK) {
+            return null;
+        }
+        int id = path.getResourceId();
+        try {
+            if (ContentFormat.TLV.equals(format)) {
+                return decodeTlv(content, id, resourceModel.type);
+            }
+            if (ContentFormat.TEXT.equals(format)) {
+                return decodeText(new String(content, StandardCharsets.UTF_8), id, resourceModel.type);
+            }
+        } catch (RuntimeException e) {
+            // Malformed for the fast path, let the default decoder report it
+        }
+        return null;
+    }
+
+    private static LwM2mSingleResource decodeTlv(byte[] content, int id, ResourceModel.Type type) {
+        if (content.length < 2) {
+            return null;
+        }
+        int header = content[0] & 0xFF;
+        // Only a "resource with value" entry
+        if ((header & 0xC0) != 0xC0) {
+            return null;
+        }
+        int offset = 1;
+        int tlvId;
+        if ((header & 0x20) == 0) {
+            tlvId = content[offset++] & 0xFF;
+        } else {
+            tlvId = ((content[offset] & 0xFF) << 8) | (content[offset + 1] & 0xFF);
+            offset += 2;
+        }
+        int length;
+        switch ((header >> 3) & 0x03) {
+            case 0:
+                length = header & 0x07;
+                break;
+            case 1:
+                length = content[offset++] & 0xFF;
+                break;
+            case 2:
+                length = ((content[offset] & 0xFF) << 8) | (content[offset + 1] & 0xFF);
+                offset += 2;
+                break;
+            default:
+                length = ((content[offset] & 0xFF) << 16) | ((content[offset + 1] & 0xFF) << 8)
+                        | (content[offset + 2] & 0xFF);
+                offset += 3;
+        }
+        if (tlvId != id || offset + length != content.length) {
+            return null;
+        }
+
+        switch (type) {
+            case INTEGER:
+                return LwM2mSingleResource.newIntegerResource(id, readInteger(content, offset, length));
+            case TIME:
+                return LwM2mSingleResource.newDateResource(id, new Date(readInteger(content, offset, length) * 1000));
+            case FLOAT:
+                if (length == 4) {
+                    return LwM2mSingleResource.newFloatResource(id,
+                            Float.intBitsToFloat((int) readInteger(content, offset, 4)));
+                }
+                if (length == 8) {
+                    return LwM2mSingleResource.newFloatResource(id,
+                            Double.longBitsToDouble(readInteger(content, offset, 8)));
+                }
+                return null;
+            case BOOLEAN:
+                if (length != 1 || content[offset] > 1 || content[offset] < 0) {
+                    return null;
+                }
+                return LwM2mSingleResource.newBooleanResource(id, content[offset] == 1);
+            case STRING:
+                return LwM2mSingleResource.newStringResource(id,
+                        new String(content, offset, length, StandardCharsets.UTF_8));
+            case OPAQUE:
+                byte[] value = new byte[length];
+                System.arraycopy(content, offset, value, 0, length);
+                return LwM2mSingleResource.newBinaryResource(id, value);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Big endian two's complement integer of 1, 2, 4 or 8 bytes
+     */
+    private static long readInteger(byte[] content, int offset, int length) {
+        if (length != 1 && length != 2 && length != 4 && length != 8) {
+            throw new IllegalArgumentException("Invalid integer length " + length);
+        }
+        long value = content[offset];
+        for (int i = 1; i < length; i++) {
+            value = (value << 8) | (content[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    private static LwM2mSingleResource decodeText(String text, int id, ResourceModel.Type type) {
+        switch (type) {
+            case INTEGER:
+                return LwM2mSingleResource.newIntegerResource(id, Long.parseLong(text));
+            case FLOAT:
+                return LwM2mSingleResource.newFloatResource(id, Double.parseDouble(text));
+            case BOOLEAN:
+                if (text.equals("1")) {
+                    return LwM2mSingleResource.newBooleanResource(id, true);
+                }
+                if (text.equals("0")) {
+                    return LwM2mSingleResource.newBooleanResource(id, false);
+                }
+                return null;
+            case STRING:
+                return LwM2mSingleResource.newStringResource(id, text);
+            case TIME:
+                return LwM2mSingleResource.newDateResource(id, new Date(Long.parseLong(text) * 1000));
+            default:
+                return null;
+        }
+    }
+}
@@ -23,6 +23,11 @@ public class ImageDownloader {
 
     private String imageUrl;
 
+    private static final AgentMetrics.Histogram backendLatency = AgentMetrics.histogram("http_backend_seconds",
+            "backend=\"image-manager\"", "Latency of HTTP requests to dojot services");
+    private static final AgentMetrics.Counter backendErrors = AgentMetrics.counter("http_backend_errors_total",
+            "backend=\"image-manager\"", "HTTP requests to dojot services that failed");
+
     public ImageDownloader(String imageManagerUrl) {
         this.imageUrl = imageManagerUrl + "/image";
         try {
@@ -50,10 +55,15 @@ public class ImageDownloader {
     }
 
     private String GetImageId(String imageLabel, String version, String token) {
+        long start = System.nanoTime();
         try {
 
-            HttpResponse<JsonNode> response = Unirest.get(imageUrl)
-                    .header("Authorization", "Bearer " + token).asJson();
+            HttpResponse<JsonNode> response = BackendLimit.of(BackendLimit.IMAGE_MANAGER)
+                    .call(() -> Unirest.get(imageUrl).header("Authorization", "Bearer " + token).asJson());
+            backendLatency.observeSince(start);
+            if (response.getStatus() >= 300) {
+                backendErrors.inc();
+            }
 
             JsonNode imageList = response.getBody();
             JSONArray images = imageList.getArray();
@@ -69,6 +79,7 @@ public class ImageDownloader {
 
 
         } catch (Exception e) {
+            backendErrors.inc();
             e.printStackTrace();
             mLogger.error(e);
         }
@@ -76,10 +87,16 @@ public class ImageDownloader {
     }
 
     private void DownloadImage(String imageId, String token) {
+        long start = System.nanoTime();
         try {
-            HttpResponse<InputStream> fwInStream = Unirest.get(imageUrl + "/" + imageId + "/binary")
-                    .header("Authorization", "Bearer " + token)
-                    .asBinary();
+            HttpResponse<InputStream> fwInStream = BackendLimit.of(BackendLimit.IMAGE_MANAGER)
+                    .call(() -> Unirest.get(imageUrl + "/" + imageId + "/binary")
+                            .header("Authorization", "Bearer " + token)
+                            .asBinary());
+            backendLatency.observeSince(start);
+            if (fwInStream.getStatus() >= 300) {
+                backendErrors.inc();
+            }
 
             InputStream in = fwInStream.getBody();
             Path path = FileSystems.getDefault().getPath("./data/" + imageId + ".hex");
@@ -88,6 +105,7 @@ public class ImageDownloader {
             }
             Files.copy(in, path, StandardCopyOption.REPLACE_EXISTING);
         } catch (Exception e) {
+            backendErrors.inc();
             e.printStackTrace();
             mLogger.error(e);
         }
@@ -0,0 +1,27 @@
+package org.cpqd.iotagent;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+  In-process ClusterStore, used when the agent runs as a single node and as a stand-in for tests
+ */
+public class InMemoryClusterStore implements ClusterStore {
+    private Map<String, String> owners = new ConcurrentHashMap<>();
+
+    @Override
+    public void claim(String deviceId, String nodeId) {
+        owners.put(deviceId, nodeId);
+    }
+
+    @Override
+    public void release(String deviceId, String nodeId) {
+        // Only the current owner may release, the device may have already moved to another node
+        owners.remove(deviceId, nodeId);
+    }
+
+    @Override
+    public String getOwner(String deviceId) {
+        return owners.get(deviceId);
+    }
+}
@@ -0,0 +1,57 @@
+package org.cpqd.iotagent;
+
+import br.com.dojot.kafka.Manager;
+import org.json.JSONObject;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/*
+  Publishes attribute updates to dojot through the kafka Manager
+  Health follows the sends themselves: a send that fails, or takes so long that the producer is obviously
+  waiting for the brokers, makes the publisher unhealthy for a while. The next send after that is a probe.
+ */
+public class KafkaPublisher implements AttributePublisher {
+    // Connected in the background at startup, publishing waits for it
+    private CompletableFuture<Manager> mIotaManager;
+    // Sends slower than this count as failed, kafka is considered down
+    private static final long SLOW_SEND = 5000;
+    private static final long UNHEALTHY_PERIOD = 5000;
+    private volatile long unhealthyUntil;
+
+    private static final AgentMetrics.Histogram publishLatency =
+            AgentMetrics.histogram("kafka_publish_seconds", "Time spent handing attribute updates to kafka");
+    private static final AgentMetrics.Counter publishErrors =
+            AgentMetrics.counter("kafka_publish_errors_total", "Attribute updates kafka refused");
+
+    public KafkaPublisher(Manager iotaManager) {
+        this(CompletableFuture.completedFuture(iotaManager));
+    }
+
+    public KafkaPublisher(CompletableFuture<Manager> iotaManager) {
+        this.mIotaManager = iotaManager;
+    }
+
+    @Override
+    public void publish(String deviceId, String service, JSONObject attrs) {
+        long start = System.nanoTime();
+        try {
+            mIotaManager.join().updateAttrs(deviceId, service, attrs, null);
+        } catch (RuntimeException e) {
+            publishErrors.inc();
+            unhealthyUntil = System.currentTimeMillis() + UNHEALTHY_PERIOD;
+            throw e;
+        } finally {
+            publishLatency.observeSince(start);
+        }
+        if (TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) > SLOW_SEND) {
+            unhealthyUntil = System.currentTimeMillis() + UNHEALTHY_PERIOD;
+        }
+    }
+
+    @Override
+    public boolean isHealthy() {
+        return mIotaManager.isDone() && !mIotaManager.isCompletedExceptionally()
+                && System.currentTimeMillis() >= unhealthyUntil;
+    }
+}
@@ -1,38 +1,255 @@
 package org.cpqd.iotagent;
 
 import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
+import com.mashape.unirest.http.Unirest;
 import org.apache.log4j.Logger;
 import org.eclipse.californium.scandium.dtls.pskstore.InMemoryPskStore;
+import org.json.JSONException;
+import org.json.JSONObject;
+import spark.Request;
+import spark.Spark;
 
 
 public class LwM2MIoTAgent {
 
+    private static void requireToken(ClusterAuth auth, Request request) {
+        if (!auth.allows(request)) {
+            Spark.halt(403, new JSONObject().put("error", "Missing or invalid " + ClusterAuth.HEADER).toString());
+        }
+    }
+
     public static void main(String[] args) {
         Logger logger = Logger.getLogger(LwM2MIoTAgent.class);
 
         logger.info("Starting LwM2M IoTAgent...");
-        
-        InMemoryPskStore securityStore = new InMemoryPskStore();
 
         String imageManagerUrl = "http://image-manager:5000";
         String deviceManagerUrl = "http://device-manager:5000";
+
+        // Device PSKs from device-manager, shared by the LwM2M and file server DTLS endpoints
+        DeviceSecurityStore deviceCredentials = new DeviceSecurityStore(deviceManagerUrl,
+                Long.parseLong(System.getenv().getOrDefault("PSK_CACHE_SIZE", "200000")),
+                Long.parseLong(System.getenv().getOrDefault("PSK_CACHE_TTL", "600")) * 1000);
+        InMemoryPskStore securityStore = new DevicePskStore(deviceCredentials);
         
-        // we need to share the securityStore with the agent
-        LwM2mAgent agent = new LwM2mAgent(deviceManagerUrl, imageManagerUrl);
+        // Admin HTTP endpoint (metrics and cluster channel)
+        Spark.port(Integer.parseInt(System.getenv().getOrDefault("HTTP_PORT", "8080")));
+        Spark.get("/metrics", (request, response) -> {
+            response.type("text/plain; version=0.0.4");
+            return AgentMetrics.scrape();
+        });
+
+        // Sampled traces of the notification and actuation paths
+        Tracer.setSampleRate(Integer.parseInt(System.getenv().getOrDefault("TRACE_SAMPLE_RATE", "100")));
+        Spark.get("/admin/traces", (request, response) -> {
+            response.type("application/json");
+            return Tracer.dump();
+        });
+
+        // Cluster mode is enabled when this node has an id and knows its peers
+        ClusterNode cluster = ClusterNode.standalone();
+        String nodeId = System.getenv("CLUSTER_NODE_ID");
+        Map<String, String> peers = nodeId == null ? Collections.<String, String>emptyMap()
+                : ClusterNode.parsePeers(System.getenv("CLUSTER_PEERS"));
+        // Guards the cluster channel, and the admin routes acting on devices
+        ClusterAuth auth = new ClusterAuth(System.getenv("CLUSTER_SECRET"), peers);
+        if (nodeId != null) {
+            cluster = new ClusterNode(nodeId, peers, new PeerClusterStore(nodeId, peers, auth), auth);
+            logger.info("Running as cluster node " + nodeId + " with peers " + peers.keySet());
+        }
+        // Every route is registered from this thread, the agent only adds its handlers to the cluster node
+        cluster.serve();
+
+        // Blocking workflows on virtual threads (JDK 21+), lanes are then cheap enough to have many
+        boolean virtual = Workers.useVirtualThreads(
+                Boolean.parseBoolean(System.getenv().getOrDefault("VIRTUAL_THREADS", "false")));
+        int cores = Runtime.getRuntime().availableProcessors();
+        int defaultLanes = virtual ? 256 : cores;
+        logger.info((virtual ? "Virtual" : "Platform") + " threads for device workflows");
+
+        // Requests in flight per backend
+        int deviceManagerLimit = Integer.parseInt(System.getenv().getOrDefault("DEVICE_MANAGER_CONCURRENCY", "64"));
+        int imageManagerLimit = Integer.parseInt(System.getenv().getOrDefault("IMAGE_MANAGER_CONCURRENCY", "8"));
+        BackendLimit.setPermits(BackendLimit.DEVICE_MANAGER, deviceManagerLimit);
+        BackendLimit.setPermits(BackendLimit.IMAGE_MANAGER, imageManagerLimit);
+        BackendLimit.setPermits(BackendLimit.DEVICES,
+                Integer.parseInt(System.getenv().getOrDefault("DEVICE_CONCURRENCY", "1024")));
+        LwM2mHandler.setRequestDeadline(Long.parseLong(System.getenv().getOrDefault("REQUEST_DEADLINE", "60")) * 1000);
+        Unirest.setConcurrency(deviceManagerLimit + imageManagerLimit, Math.max(deviceManagerLimit, imageManagerLimit));
+
+        // CoAP stack threads, 0 keeps the defaults (fileServerCoAP.properties for the file server)
+        NetworkTuning.configure(Integer.parseInt(System.getenv().getOrDefault("COAP_RECEIVER_THREADS", "0")),
+                Integer.parseInt(System.getenv().getOrDefault("COAP_SENDER_THREADS", "0")),
+                Integer.parseInt(System.getenv().getOrDefault("COAP_PROTOCOL_THREADS", "0")));
+        NetworkTuning.setListenerThreads(
+                Integer.parseInt(System.getenv().getOrDefault("REGISTRATION_THREADS", String.valueOf(defaultLanes))),
+                Integer.parseInt(System.getenv().getOrDefault("NOTIFICATION_THREADS", String.valueOf(defaultLanes))));
+
+        int lanes = Integer.parseInt(System.getenv().getOrDefault("EVENT_LANES",
+                String.valueOf(virtual ? defaultLanes : cores * 2)));
+        EventDispatcher dispatcher = new EventDispatcher(lanes, 1000);
+        AgentMetrics.gauge("kafka_event_lag", "Events taken from kafka not processed yet", dispatcher::getLag);
+        for (int i = 0; i < lanes; i++) {
+            final int lane = i;
+            AgentMetrics.gauge("kafka_event_lane_depth", "lane=\"" + lane + "\"", "Events queued per lane",
+                    () -> dispatcher.getQueueDepth(lane));
+        }
+
+        // Commands held for sleeping queue mode devices
+        CommandQueue.setLimits(Integer.parseInt(System.getenv().getOrDefault("COMMAND_QUEUE_PER_DEVICE", "32")),
+                Integer.parseInt(System.getenv().getOrDefault("COMMAND_QUEUE_TOTAL", "100000")),
+                Long.parseLong(System.getenv().getOrDefault("COMMAND_TTL", "3600")) * 1000);
+
+        // Attribute values held while kafka is slow, the newest value of each attribute wins
+        PublishBuffer.setCapacity(Integer.parseInt(System.getenv().getOrDefault("PUBLISH_BUFFER_SIZE", "100000")));
+
+        // Attribute updates kept on disk while kafka is down, replayed when it is back
+        String spoolDir = System.getenv().getOrDefault("SPOOL_DIR", "");
+        if (!spoolDir.isEmpty()) {
+            try {
+                TelemetrySpool spool = new TelemetrySpool(new File(spoolDir),
+                        Integer.parseInt(System.getenv().getOrDefault("SPOOL_SEGMENT_SIZE", "64")) * 1024 * 1024,
+                        Integer.parseInt(System.getenv().getOrDefault("SPOOL_MAX_SEGMENTS", "16")),
+                        Long.parseLong(System.getenv().getOrDefault("SPOOL_MAX_AGE", "86400")) * 1000);
+                SpoolingPublisher.setSpool(spool,
+                        Integer.parseInt(System.getenv().getOrDefault("SPOOL_REPLAY_RATE", "1000")));
+                Runtime.getRuntime().addShutdownHook(new Thread(spool::flush));
+            } catch (IOException e) {
+                logger.error("Unable to open the spool in " + spoolDir + ", running without it", e);
+            }
+        }
 
+        // Independent components start in parallel: models and kafka (in the agent), and the file server
         File coapConfigFile = new File(new String("fileServerCoAP.properties"));
+        CompletableFuture<SimpleFileServer> fileServerInit = CompletableFuture.supplyAsync(() -> {
+            SimpleFileServer fileServer = new SimpleFileServer(coapConfigFile, securityStore);
+            fileServer.start();
+            // we need to share the path with the ImageDownloader
+            fileServer.addNewResource(new String("data"), new File(new String("data")));
+            return fileServer;
+        });
+        final ClusterNode agentCluster = cluster;
+        CompletableFuture<LwM2mAgent> agentInit = CompletableFuture.supplyAsync(
+                () -> new LwM2mAgent(deviceManagerUrl, imageManagerUrl, agentCluster, dispatcher));
 
-        SimpleFileServer fileServer = new SimpleFileServer(coapConfigFile, securityStore);
-        
-        fileServer.start();
-        // we need to share the path with the ImageDownloader
-        fileServer.addNewResource(new String("data"), new File(new String("data")));
-        (new Thread(agent)).start();
+        Spark.get("/health/live", (request, response) -> {
+            boolean alive = !agentInit.isCompletedExceptionally() && !fileServerInit.isCompletedExceptionally()
+                    && !(agentInit.isDone() && agentInit.join().hasFailed());
+            response.status(alive ? 200 : 503);
+            return alive ? "alive" : "failed";
+        });
+        Spark.get("/health/ready", (request, response) -> {
+            boolean lwm2m = agentInit.isDone() && !agentInit.isCompletedExceptionally() && agentInit.join().isReady();
+            boolean files = fileServerInit.isDone() && !fileServerInit.isCompletedExceptionally();
+            boolean kafka = lwm2m && agentInit.join().getKafkaReady().isDone()
+                    && !agentInit.join().getKafkaReady().isCompletedExceptionally();
+            response.status(lwm2m && files && kafka ? 200 : 503);
+            response.type("application/json");
+            return new JSONObject().put("lwm2m", lwm2m).put("fileserver", files).put("kafka", kafka).toString();
+        });
+
+        LwM2mAgent agent = agentInit.join();
+
+        // Last known values, ?path=/3/0/3&max_age=60 reads the resource if its value is older than max_age seconds.
+        // It sends requests to devices, callers need the cluster token like for bulk operations
+        LwM2mAgent.setShadowMaxAge(Long.parseLong(System.getenv().getOrDefault("SHADOW_MAX_AGE", "60")) * 1000);
+        Spark.before("/shadow/*", (request, response) -> requireToken(auth, request));
+        Spark.get("/shadow/:deviceId", (request, response) -> {
+            String maxAgeParam = request.queryParams("max_age");
+            JSONObject shadow;
+            response.type("application/json");
+            try {
+                long maxAge = maxAgeParam == null ? 60 : Long.parseLong(maxAgeParam);
+                if (maxAge < 0 || maxAge > Long.MAX_VALUE / 1000) {
+                    throw new IllegalArgumentException("Invalid max_age " + maxAgeParam);
+                }
+                shadow = agent.getShadow(request.params(":deviceId"), request.queryParams("path"), maxAge * 1000);
+            } catch (IllegalArgumentException e) {
+                // A malformed max_age too, NumberFormatException is one
+                response.status(400);
+                return new JSONObject().put("error", e.getMessage()).toString();
+            }
+            if (shadow == null) {
+                response.status(404);
+                return "{}";
+            }
+            return shadow.toString();
+        });
+
+        // Operation on many devices, results are streamed as JSON lines, progress at /bulk/<job id>
+        // Callers need the cluster token, like the peers
+        Spark.before("/bulk", (request, response) -> requireToken(auth, request));
+        Spark.before("/bulk/*", (request, response) -> requireToken(auth, request));
+        Spark.post("/bulk", (request, response) -> {
+            BulkOperations bulk = agent.getBulkOperations();
+            if (bulk == null) {
+                response.status(503);
+                return "{}";
+            }
+            BulkOperations.Job job;
+            try {
+                job = bulk.start(new JSONObject(request.body()));
+            } catch (IllegalArgumentException | JSONException e) {
+                response.status(400);
+                return new JSONObject().put("error", e.getMessage()).toString();
+            }
+            response.type("application/x-ndjson");
+            response.header("X-Job-Id", job.getId());
+            bulk.stream(job, response.raw().getOutputStream());
+            return "";
+        });
+        Spark.get("/bulk/:jobId", (request, response) -> {
+            BulkOperations bulk = agent.getBulkOperations();
+            BulkOperations.Job job = bulk == null ? null : bulk.getJob(request.params(":jobId"));
+            response.type("application/json");
+            if (job == null) {
+                response.status(404);
+                return "{}";
+            }
+            return job.getProgress().toString();
+        });
+        Runtime.getRuntime().addShutdownHook(new Thread(agent::stop));
+        if (Boolean.parseBoolean(System.getenv().getOrDefault("DTLS_ENABLED", "false"))) {
+            agent.enableDtls(deviceCredentials,
+                    Integer.parseInt(System.getenv().getOrDefault("DTLS_MAX_SESSIONS", "150000")),
+                    Long.parseLong(System.getenv().getOrDefault("DTLS_SESSION_TIMEOUT", "86400")));
+        }
+        // Bulk load of the devices of these tenants, registrations after a restart then skip device-manager
+        DeviceIndex.setTtl(Long.parseLong(System.getenv().getOrDefault("DEVICE_INDEX_TTL", "600")) * 1000);
+        String warmStartTenants = System.getenv().getOrDefault("WARM_START_TENANTS", "");
+        if (!warmStartTenants.isEmpty()) {
+            agent.warmStart(Arrays.asList(warmStartTenants.split(",")),
+                    Integer.parseInt(System.getenv().getOrDefault("WARM_START_PAGE_SIZE", "500")),
+                    Long.parseLong(System.getenv().getOrDefault("WARM_START_TIMEOUT", "60")) * 1000);
+        }
+        agent.run();
+        fileServerInit.join();
+        logger.info(String.format("Ready in %d ms (CoAP endpoints accepting traffic)",
+                ManagementFactory.getRuntimeMXBean().getUptime()));
+        agent.getKafkaReady().thenRun(() -> logger.info(String.format("Kafka connected after %d ms",
+                ManagementFactory.getRuntimeMXBean().getUptime())));
+
+        // Training run of the class data sharing archive, see the appcds profile
+        if (Boolean.parseBoolean(System.getenv().getOrDefault("EXIT_WHEN_READY", "false"))) {
+            System.exit(0);
+        }
 
         while (true) {
             logger.info("Running LwM2M IoTAgent");
 
+            StringBuilder depths = new StringBuilder();
+            for (int i = 0; i < dispatcher.getLaneCount(); i++) {
+                depths.append(i == 0 ? "" : ",").append(dispatcher.getQueueDepth(i));
+            }
+            logger.info(String.format("Event lag: %d, lane depths: [%s]", dispatcher.getLag(), depths));
+
             try {
                 Thread.sleep(10000);
             } catch (InterruptedException exception) {
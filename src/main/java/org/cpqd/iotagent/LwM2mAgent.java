@@ -2,24 +2,27 @@ package org.cpqd.iotagent;
 
 
 import br.com.dojot.kafka.Manager;
-import com.google.gson.JsonElement;
-import com.google.gson.*;
 import com.mashape.unirest.http.*;
 
 import java.net.HttpURLConnection;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
 
 import org.apache.log4j.Logger;
 import org.eclipse.leshan.core.model.LwM2mModel;
 import org.eclipse.leshan.core.model.ObjectLoader;
 import org.eclipse.leshan.core.model.ObjectModel;
-import org.eclipse.leshan.core.model.ResourceModel;
-import org.eclipse.leshan.core.node.codec.DefaultLwM2mNodeDecoder;
 import org.eclipse.leshan.core.node.codec.DefaultLwM2mNodeEncoder;
 import org.eclipse.leshan.core.node.codec.LwM2mNodeDecoder;
 import org.eclipse.leshan.core.request.WriteRequest;
 import org.eclipse.leshan.core.response.ObserveResponse;
 import org.eclipse.leshan.core.response.WriteResponse;
+import org.eclipse.californium.core.network.config.NetworkConfig;
+import org.eclipse.californium.scandium.config.DtlsConnectorConfig;
 import org.eclipse.leshan.server.californium.LeshanServerBuilder;
 import org.eclipse.leshan.server.californium.impl.LeshanServer;
 import org.eclipse.leshan.server.model.LwM2mModelProvider;
@@ -27,8 +30,13 @@ import org.eclipse.leshan.server.observation.ObservationListener;
 import org.eclipse.leshan.server.registration.RegistrationListener;
 import org.eclipse.leshan.server.registration.Registration;
 import org.eclipse.leshan.server.registration.RegistrationUpdate;
+import org.eclipse.leshan.server.security.SecurityStore;
 import org.eclipse.leshan.core.observation.Observation;
+import org.eclipse.leshan.core.model.ResourceModel;
 import org.eclipse.leshan.core.node.LwM2mNode;
+import org.eclipse.leshan.core.node.LwM2mObject;
+import org.eclipse.leshan.core.node.LwM2mObjectInstance;
+import org.eclipse.leshan.core.node.LwM2mPath;
 import org.json.JSONObject;
 
 
@@ -41,20 +49,89 @@ public class LwM2mAgent implements Runnable {
     private ImageDownloader imageDownloader;
     private DeviceManager deviceManager;
     private LwM2mHandler requestHandler;
-    private Gson gson;
     private LeshanServer server;
     private LwM2mModelProvider modelProvider;
+    private ClusterNode cluster;
+    private EventDispatcher dispatcher;
+    private EventDispatcher registrationLanes;
+    private EventDispatcher notificationLanes;
+    private ExecutorService firmwareWorkers;
+    private CompletableFuture<Void> kafka = CompletableFuture.completedFuture(null);
+    private volatile boolean started;
+    private volatile boolean failed;
+    // DTLS endpoint, disabled unless a security store is set
+    private SecurityStore securityStore;
+    private int maxDtlsSessions;
+    private long dtlsSessionTimeout;
 
     private static HttpURLConnection con;
     private final static String[] modelPaths = new String[]{"5000.xml"};
-    private Manager mIotaManager;
+    private PublishBuffer publisher;
+    private WindowAggregator aggregator;
+    // Created with the request handler when the server starts
+    private volatile BulkOperations bulkOperations;
+    private Map<String, Function<DeviceEvent, Integer>> eventHandlers = new HashMap<>();
+
+    private final AtomicLong activeObservations = new AtomicLong();
+    // Endpoints device-manager did not know, with the serial number they reported and when they were looked up
+    private final Map<String, UnknownEndpoint> unknownEndpoints = new ConcurrentHashMap<>();
+    private static final long UNKNOWN_DEVICE_TTL = 300000;
+
+    private static class UnknownEndpoint {
+        final String serialNumber;
+        final long since = System.currentTimeMillis();
+
+        UnknownEndpoint(String serialNumber) {
+            this.serialNumber = serialNumber;
+        }
+    }
+    // How old a shadow value may be for internal reads, in milliseconds
+    private static long shadowMaxAge = 60000;
+    // Devices by serial number, filled at startup when warm start is enabled
+    private final DeviceIndex deviceIndex = new DeviceIndex();
+    private long warmStartTimeout;
+    private static final AgentMetrics.Counter registrations =
+            AgentMetrics.counter("lwm2m_registrations_total", "Devices registered");
+    private static final AgentMetrics.Counter deregistrations =
+            AgentMetrics.counter("lwm2m_deregistrations_total", "Devices deregistered or expired");
+    private static final AgentMetrics.Counter notifications =
+            AgentMetrics.counter("lwm2m_notifications_total", "Notifications received from devices");
+    private static final AgentMetrics.Histogram notificationLatency = AgentMetrics.histogram(
+            "lwm2m_notification_processing_seconds", "Time from notification received to attributes queued for publishing");
+    private static final AgentMetrics.Counter rediscoveries =
+            AgentMetrics.counter("lwm2m_rediscoveries_total", "Registration updates that required a full discovery");
+    private static final AgentMetrics.Counter rediscoveriesAvoided = AgentMetrics.counter(
+            "lwm2m_rediscoveries_avoided_total", "Registration updates handled without a full discovery");
+    private static final AgentMetrics.Counter firmwareUpdates =
+            AgentMetrics.counter("firmware_updates_started_total", "Firmware package URIs written to devices");
 
 
     // *********** Instance Initialization *************** //
-    LwM2mAgent(String deviceManagerUrl, String imageManagerUrl) {
+    LwM2mAgent(String deviceManagerUrl, String imageManagerUrl, ClusterNode cluster, EventDispatcher dispatcher) {
+        this(deviceManagerUrl, imageManagerUrl, cluster, dispatcher, CompletableFuture.supplyAsync(Manager::new));
+    }
+
+    /**
+     * Models are loaded while kafka connects, events are subscribed to once it is connected
+     */
+    private LwM2mAgent(String deviceManagerUrl, String imageManagerUrl, ClusterNode cluster,
+                       EventDispatcher dispatcher, CompletableFuture<Manager> iotaManager) {
+        this(deviceManagerUrl, imageManagerUrl, cluster, dispatcher,
+                SpoolingPublisher.wrap(new KafkaPublisher(iotaManager)));
+        this.kafka = iotaManager.thenAccept(this::subscribe);
+    }
+
+    /**
+     * Agent without a kafka consumer, events are fed through handleEvent
+     */
+    LwM2mAgent(String deviceManagerUrl, String imageManagerUrl, ClusterNode cluster, EventDispatcher dispatcher,
+               AttributePublisher publisher) {
         this.imageManagerUrl = imageManagerUrl;
-        this.gson = createGson();
-        this.mIotaManager = new Manager();
+        this.cluster = cluster;
+        this.dispatcher = dispatcher;
+        // Notification lanes never wait for kafka
+        this.publisher = new PublishBuffer(publisher);
+        this.aggregator = new WindowAggregator(this.publisher);
 
         // Define model provider
         List<ObjectModel> models = ObjectLoader.loadDefault();
@@ -65,20 +142,169 @@ public class LwM2mAgent implements Runnable {
         imageDownloader = new ImageDownloader(imageManagerUrl);
         deviceManager = new DeviceManager(deviceManagerUrl, dynamDinamicModelProvider);
 
-        this.mIotaManager.addCallback("create", this::on_create);
-        this.mIotaManager.addCallback("update", this::on_update);
-        this.mIotaManager.addCallback("remove", this::on_remove);
-        this.mIotaManager.addCallback("configure", this::on_actuate);
-        this.mIotaManager.addCallback("template.update", this::on_template_update);
+        registrationLanes = new EventDispatcher("registration-lane", NetworkTuning.getRegistrationThreads(), 1000);
+        notificationLanes = new EventDispatcher("notification-lane", NetworkTuning.getNotificationThreads(), 1000);
+        firmwareWorkers = Workers.perTaskExecutor("firmware", Runtime.getRuntime().availableProcessors());
+        AgentMetrics.gauge("lwm2m_registration_lag", "Registration events waiting for a worker",
+                registrationLanes::getLag);
+        AgentMetrics.gauge("lwm2m_notification_lag", "Notifications waiting for a worker",
+                notificationLanes::getLag);
+        AgentMetrics.gauge("lwm2m_connected_devices", "Devices currently registered on this node",
+                deviceManager::getDeviceCount);
+        AgentMetrics.gauge("lwm2m_active_observations", "Observations currently established",
+                () -> Math.max(0, activeObservations.get()));
+
+        eventHandlers.put("create", this::on_create);
+        eventHandlers.put("update", this::on_update);
+        eventHandlers.put("remove", this::on_remove);
+        eventHandlers.put("configure", this::on_actuate);
+        eventHandlers.put("template.update", this::on_template_update);
+
+        // Messages forwarded by other nodes go to the lane of their device, ordered with the local events,
+        // and are handled locally only
+        this.cluster.addForwardHandler("update", message -> dispatch("update", message, e -> handleUpdate(e, false)));
+        this.cluster.addForwardHandler("configure",
+                message -> dispatch("configure", message, e -> handleActuate(e, false)));
+        this.cluster.addForwardHandler("remove", message -> dispatch("remove", message, e -> handleRemove(e, false)));
+        // Index entries other nodes saw change, the owner may be any node
+        this.cluster.addForwardHandler("index.remove", message -> {
+            deviceIndex.remove(message.getString("id"));
+            return 0;
+        });
+        this.cluster.addForwardHandler("template.update",
+                message -> dispatch("template.update", message, this::handleTemplateUpdate));
+    }
+
+    /**
+     * Callbacks run on the kafka consumer thread, the actual work is done by the dispatcher lanes
+     */
+    public void subscribe(Manager iotaManager) {
+        for (String type : eventHandlers.keySet()) {
+            iotaManager.addCallback(type, message -> handleEvent(type, message));
+        }
+    }
+
+    public Integer handleEvent(String type, JSONObject message) {
+        Function<DeviceEvent, Integer> handler = eventHandlers.get(type);
+        if (handler == null) {
+            return -1;
+        }
+        return dispatch(type, message, handler);
+    }
+
+    /**
+     * Decodes the event once and hands it to the lane of its device
+     */
+    private Integer dispatch(String type, JSONObject message, Function<DeviceEvent, Integer> handler) {
+        Tracer.Trace trace = Tracer.start("event:" + type, null);
+        DeviceEvent event;
+        try {
+            event = DeviceEvent.decode(type, message);
+        } catch (Exception e) {
+            mLogger.error("Invalid " + type + " event: " + message, e);
+            return -1;
+        }
+        trace.mark("decode");
+        dispatcher.dispatch(event.getKey(), () -> {
+            trace.mark("queue");
+            Tracer.setCurrent(trace);
+            try {
+                handler.apply(event);
+            } finally {
+                Tracer.setCurrent(null);
+                trace.finish();
+            }
+        });
+        return 0;
+    }
+
+    /**
+     * Enables the DTLS endpoint. Sessions are kept for resumption up to maxSessions, and until they have
+     * been idle for sessionTimeout seconds
+     */
+    public void enableDtls(SecurityStore securityStore, int maxSessions, long sessionTimeout) {
+        this.securityStore = securityStore;
+        this.maxDtlsSessions = maxSessions;
+        this.dtlsSessionTimeout = sessionTimeout;
+    }
+
+    /**
+     * Loads the devices of these tenants in the background, registrations wait up to timeout
+     * milliseconds for it instead of looking devices up one by one
+     */
+    public CompletableFuture<Void> warmStart(List<String> tenants, int pageSize, long timeout) {
+        warmStartTimeout = timeout;
+        deviceIndex.beginWarmUp();
+        return CompletableFuture.runAsync(() -> deviceIndex.warmUp(deviceManager, tenants, pageSize));
+    }
+
+    public static void setShadowMaxAge(long maxAge) {
+        shadowMaxAge = maxAge;
+    }
+
+    /**
+     * Last known values of a connected device, null if it is not connected here. A path (e.g. "/3/0/3")
+     * whose value is older than maxAge milliseconds is read from the device first, IllegalArgumentException
+     * if the path is not a resource path
+     */
+    public JSONObject getShadow(String deviceId, String path, long maxAge) {
+        int[] ids = null;
+        if (path != null) {
+            try {
+                ids = DeviceAttribute.getIdsfromPath(path);
+            } catch (NumberFormatException e) {
+                ids = null;
+            }
+            if (ids == null || ids.length != 3 || ids[1] == DeviceAttribute.ANY_INSTANCE) {
+                throw new IllegalArgumentException("Invalid resource path " + path + ", /object/instance/resource expected");
+            }
+        }
+        Registration registration = deviceManager.getDeviceRegistration(deviceId);
+        if (registration == null || requestHandler == null) {
+            return null;
+        }
+        if (ids != null) {
+            requestHandler.ReadResource(registration, ids[0], ids[1], ids[2], maxAge);
+        }
+        return requestHandler.getShadow().toJson(registration.getId());
+    }
+
+    /**
+     * Bulk jobs over the devices connected here, null until the server runs
+     */
+    public BulkOperations getBulkOperations() {
+        return bulkOperations;
     }
 
-    private static Gson createGson() {
-        GsonBuilder gsonBuilder = new GsonBuilder();
-        gsonBuilder.registerTypeHierarchyAdapter(LwM2mNode.class, new LwM2mNodeSerializer());
-        gsonBuilder.registerTypeHierarchyAdapter(LwM2mNode.class, new LwM2mNodeDeserializer());
-        gsonBuilder.setDateFormat("yyyy-MM-dd'T'HH:mm:ssXXX");
-        Gson thiGson = gsonBuilder.create();
-        return thiGson;
+    /**
+     * The LwM2M endpoints are bound and requests are handled
+     */
+    public boolean isReady() {
+        return started;
+    }
+
+    /**
+     * The LwM2M server could not start
+     */
+    public boolean hasFailed() {
+        return failed;
+    }
+
+    public CompletableFuture<Void> getKafkaReady() {
+        return kafka;
+    }
+
+    /**
+     * Waits for the events already taken from kafka to be processed
+     */
+    public void stop() {
+        try {
+            dispatcher.drain(10000);
+            notificationLanes.drain(5000);
+            publisher.drain(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 
     private static final Map<String, Integer[]> lampLwm2m = createMap();
@@ -106,16 +332,47 @@ public class LwM2mAgent implements Runnable {
         String SerialNumber = requestHandler.ReadResource(registration, 3, 0, 2);
         mLogger.debug(DeviceModel + " / " + SerialNumber);
         String Lwm2mId = registration.getId();
-        JsonElement deviceJson = deviceManager.GetDeviceFromDeviceManager(service, DeviceModel, SerialNumber);
-        Device device = new Device(deviceJson);
+        if (DeviceModel.isEmpty() || SerialNumber.isEmpty()) {
+            // Sleeping, timed out or failed reads, the device is not known to be unknown
+            mLogger.debug("Unable to identify " + registration.getEndpoint() + ", retried on its next update");
+            return;
+        }
+        Device device = deviceIndex.get(service, DeviceModel, SerialNumber, warmStartTimeout);
+        if (device == null) {
+            JSONObject deviceJson;
+            try {
+                deviceJson = deviceManager.GetDeviceFromDeviceManager(service, DeviceModel, SerialNumber);
+            } catch (IllegalStateException e) {
+                // Only devices device-manager does not have are remembered as unknown
+                mLogger.warn("Unable to look up " + registration.getEndpoint() + ", retried on its next update: "
+                        + e.getMessage());
+                return;
+            }
+            if (deviceJson == null) {
+                mLogger.debug("Unknown device: " + registration.getEndpoint());
+                unknownEndpoints.put(registration.getEndpoint(), new UnknownEndpoint(SerialNumber));
+                return;
+            }
+            device = new Device(deviceJson);
+            deviceIndex.put(service, device);
+        }
+        unknownEndpoints.remove(registration.getEndpoint());
         deviceManager.RegisterDevice(device, service, Lwm2mId, DeviceModel, SerialNumber, registration);
+        cluster.claim(device.deviceId);
 
 
-        // Register listeners for dynamic data
-        for (DeviceAttribute attr : device.attributes) {
-            if (attr.type.equals("dynamic")) {
-                Integer[] path = attr.getLwm2mPath();
+        // Register listeners for dynamic data, wildcard attributes share one observation of the whole object
+        Set<Integer> observedObjects = new HashSet<>();
+        for (DeviceAttribute attr : device.getAttributes()) {
+            if (attr.type != DeviceAttribute.Type.DYNAMIC || !attr.isLwm2mAttr()) {
+                continue;
+            }
+            int[] path = attr.getLwm2mPath();
+            if (!attr.isWildcard()) {
                 requestHandler.ObserveResource(registration, path[0], path[1], path[2]);
+            } else if (observedObjects.add(path[0])
+                    && !LwM2mHandler.getInstanceIds(registration, path[0]).isEmpty()) {
+                requestHandler.ObserveObject(registration, path[0]);
             }
         }
 
@@ -126,15 +383,65 @@ public class LwM2mAgent implements Runnable {
         }
     }
 
+    /**
+     * Observes what the device added to its object links and cancels what it removed
+     */
+    private void updateObservations(Registration registration, Registration previousReg) {
+        Device device = deviceManager.getDevice(deviceManager.getDeviceId(registration.getId()));
+        if (device == null) {
+            return;
+        }
+        Set<String> before = LwM2mHandler.getInstancePaths(previousReg);
+        Set<String> after = LwM2mHandler.getInstancePaths(registration);
+        if (before.equals(after)) {
+            return;
+        }
+
+        Set<Integer> wildcardObjects = new HashSet<>();
+        for (DeviceAttribute attr : device.getAttributes()) {
+            if (attr.type != DeviceAttribute.Type.DYNAMIC || !attr.isLwm2mAttr()) {
+                continue;
+            }
+            int[] path = attr.getLwm2mPath();
+            if (attr.isWildcard()) {
+                // Object observations already cover new and removed instances
+                if (!wildcardObjects.add(path[0])) {
+                    continue;
+                }
+                boolean had = !LwM2mHandler.getInstanceIds(previousReg, path[0]).isEmpty();
+                boolean has = !LwM2mHandler.getInstanceIds(registration, path[0]).isEmpty();
+                if (has && !had) {
+                    requestHandler.ObserveObject(registration, path[0]);
+                } else if (had && !has) {
+                    requestHandler.CancelObservations(registration, "/" + path[0]);
+                }
+                continue;
+            }
+            String instance = path[0] + "/" + path[1];
+            if (after.contains(instance) && !before.contains(instance)) {
+                requestHandler.ObserveResource(registration, path[0], path[1], path[2]);
+            } else if (before.contains(instance) && !after.contains(instance)) {
+                requestHandler.CancelObservations(registration, "/" + instance + "/" + path[2]);
+            }
+        }
+    }
+
     private void updateFW(Registration registration, String newFwVersion, String templateLabel, String service) {
+        // Sleeping devices check their version when they wake up, a newer request replaces this one
+        if (requestHandler.deferIfAsleep(registration, "firmware",
+                r -> updateFW(r, newFwVersion, templateLabel, service))) {
+            return;
+        }
+
         // Get device current FW version
-        String currentFwVersion = requestHandler.ReadResource(registration, 3, 0, 3);
+        String currentFwVersion = requestHandler.ReadResource(registration, 3, 0, 3, shadowMaxAge);
 
         // If Version has changed Update
         if (!currentFwVersion.equals(newFwVersion)) {
             mLogger.debug("Update Succesfull");
             String fileUrl = imageDownloader.ImageUrl(service, templateLabel, newFwVersion);
             requestHandler.WriteResource(registration, 5, 0, 1, fileUrl);
+            firmwareUpdates.inc();
         } else {
             mLogger.debug("Device already Up-to-date");
         }
@@ -142,28 +449,40 @@ public class LwM2mAgent implements Runnable {
 
 
     // *********** Run Server *************** //
-    private Integer on_create(JSONObject message) {
-        mLogger.debug("on_create: " + message.toString());
-        JsonElement o = new JsonParser().parse(message.toString());
-        String service = o.getAsJsonObject().get("meta").getAsJsonObject().get("service").getAsString();
-        Device device = new Device(o.getAsJsonObject().get("data"));
-        deviceManager.RegisterModel(device);
+    private Integer on_create(DeviceEvent event) {
+        mLogger.debug("on_create: " + event.deviceId);
+        deviceManager.RegisterModel(event.device);
+        deviceIndex.put(event.service, event.device);
+        // The new device may be one that was already trying to connect, its next update looks it up again
+        String serialNumber = event.device.getStaticValue("serial_number");
+        String identity = event.device.getStaticValue(DeviceSecurityStore.IDENTITY_ATTR);
+        unknownEndpoints.entrySet().removeIf(unknown -> unknown.getKey().equals(identity)
+                || unknown.getKey().equals(serialNumber)
+                || (serialNumber != null && !serialNumber.isEmpty()
+                        && serialNumber.equals(unknown.getValue().serialNumber)));
         return 0;
     }
 
 
-    private Integer on_update(JSONObject message) {
-        mLogger.debug("on_update: " + message.toString());
+    private Integer on_update(DeviceEvent event) {
+        mLogger.debug("on_update: " + event.deviceId);
+        deviceIndex.put(event.service, event.device);
+        invalidatePeerIndexes(event.deviceId);
+        return handleUpdate(event, true);
+    }
 
-        JsonElement o = new JsonParser().parse(message.toString());
-        Device device = new Device(o.getAsJsonObject().get("data"));
-        String service = o.getAsJsonObject().get("meta").getAsJsonObject().get("service").getAsString();
+    private Integer handleUpdate(DeviceEvent event, boolean allowForward) {
+        Device device = event.device;
+        String service = event.service;
         deviceManager.RegisterModel(device);
 
         // Retrieve device id
         String id = device.deviceId;
         Registration registration = deviceManager.getDeviceRegistration(id);
         if (registration == null) {
+            if (allowForward && cluster.forward(id, "update", event.message)) {
+                return 0;
+            }
             return -1;
         }
 
@@ -179,79 +498,123 @@ public class LwM2mAgent implements Runnable {
         return 0;
     }
 
-    private Integer on_remove(JSONObject message) {
-        mLogger.debug("on_remove: " + message.toString());
-        JsonObject o = new JsonParser().parse(message.toString()).getAsJsonObject();
-        String deviceId = o.get("data").getAsJsonObject().get("id").getAsString();
+    private Integer on_remove(DeviceEvent event) {
+        mLogger.debug("on_remove: " + event.deviceId);
+        invalidatePeerIndexes(event.deviceId);
+        return handleRemove(event, true);
+    }
+
+    // Other nodes drop what they indexed for the device, the next registration looks it up again
+    private void invalidatePeerIndexes(String deviceId) {
+        if (cluster.isClustered()) {
+            cluster.broadcast("index.remove", new JSONObject().put("id", deviceId));
+        }
+    }
+
+    private Integer handleRemove(DeviceEvent event, boolean allowForward) {
+        String deviceId = event.deviceId;
+        deviceIndex.remove(deviceId);
         Registration registration = deviceManager.getDeviceRegistration(deviceId);
+        if (registration == null) {
+            // The owner deregisters it, and stops observing and aggregating it
+            if (allowForward) {
+                cluster.forward(deviceId, "remove", event.message);
+            }
+            return 0;
+        }
         deviceManager.DeregisterDevice(registration.getId());
+        aggregator.close(deviceId);
+        cluster.release(deviceId);
         return 0;
     }
 
-    private Object getObjectFromResourceJson(ResourceModel.Type type, JsonPrimitive attr) {
-        switch (type) {
-            case STRING:
-                return attr.getAsString();
-            case FLOAT:
-                return attr.getAsDouble();
-            case BOOLEAN:
-                return attr.getAsBoolean();
-            case INTEGER:
-                return attr.getAsInt();
-            default:
-                return attr.getAsString();
+    private Integer on_template_update(DeviceEvent event) {
+        mLogger.debug("on_template_update: " + event.templateLabel);
+        // Affected devices may be connected to any node, and every node shares the template attributes
+        if (cluster.isClustered()) {
+            cluster.broadcast("template.update", event.message);
         }
+        return handleTemplateUpdate(event);
     }
 
+    private Integer handleTemplateUpdate(DeviceEvent event) {
+        String service = event.service;
 
-    private Integer on_template_update(JSONObject message) {
-        mLogger.debug("on_template_update: " + message.toString());
-        JsonObject o = new JsonParser().parse(message.toString()).getAsJsonObject();
-
-        JsonObject data = o.get("data").getAsJsonObject();
-        String service = o.get("meta").getAsJsonObject().get("service").getAsString();
-
+        // New devices of this template share the updated attributes
+        TemplateRegistry.replace(event.templateId, event.templateAttributes);
 
         // get new fw version
-
-        LinkedList<DeviceAttribute> attrs = Device.getAttributeListFromTemplate(data.get("template").getAsJsonObject().get("attrs"));
-        String newFwVersion = Device.getStaticValue(attrs, "fw_version");
-        String templateLabel = data.get("template").getAsJsonObject().get("label").getAsString();
+        String newFwVersion = event.templateAttributes.getStaticValue("fw_version");
+        String templateLabel = event.templateLabel;
 
 
         //iterate over each affected device
         //if device exists and is connected
-        for (JsonElement deviceId : data.get("affected").getAsJsonArray()) {
-            mLogger.debug(String.format("Trying to update: %s with version: %s", deviceId.getAsString(), newFwVersion));
-            Registration registration = deviceManager.getDeviceRegistration(deviceId.getAsString());
+        for (String deviceId : event.affected) {
+            mLogger.debug(String.format("Trying to update: %s with version: %s", deviceId, newFwVersion));
+            // Indexed devices still point to the previous template
+            deviceIndex.remove(deviceId);
+            Registration registration = deviceManager.getDeviceRegistration(deviceId);
             if (registration == null) {
                 mLogger.debug("No such device");
                 continue;
             }
-            updateFW(registration, newFwVersion, templateLabel, service);
-
+            // One workflow per device, bounded by the image-manager and device limits
+            firmwareWorkers.execute(() -> updateFW(registration, newFwVersion, templateLabel, service));
         }
         return 0;
     }
 
-    private Integer on_actuate(JSONObject message) {
-        mLogger.debug("on_actuate: " + message.toString());
-        JsonElement o = new JsonParser().parse(message.toString());
-        String service = o.getAsJsonObject().get("meta").getAsJsonObject().get("service").getAsString();
+    private Integer on_actuate(DeviceEvent event) {
+        mLogger.debug("on_actuate: " + event.deviceId);
+        return handleActuate(event, true);
+    }
 
-        JsonElement data = o.getAsJsonObject().get("data");
-        JsonObject attrs = data.getAsJsonObject().get("attrs").getAsJsonObject();
-        String deviceId = data.getAsJsonObject().get("id").getAsString();
+    private Integer handleActuate(DeviceEvent event, boolean allowForward) {
+        String deviceId = event.deviceId;
         Registration registration = deviceManager.getDeviceRegistration(deviceId);
+        if (registration == null) {
+            if (allowForward && cluster.forward(deviceId, "configure", event.message)) {
+                return 0;
+            }
+            mLogger.debug("No such device: " + deviceId);
+            return -1;
+        }
 
 
-        for (Map.Entry<String, JsonElement> attr : attrs.entrySet()) {
-            Integer[] path = deviceManager.getPathFromLabel(attr.getKey());
-            if (path != null) {
-                ResourceModel.Type type = modelProvider.getObjectModel(registration).getResourceModel(path[0], path[2]).type;
-                Object value = getObjectFromResourceJson(type, attr.getValue().getAsJsonPrimitive());
+        Tracer.Trace trace = Tracer.current();
+        for (Map.Entry<String, Object> attr : event.actuation.entrySet()) {
+            int[] path = deviceManager.getPathFromLabel(attr.getKey());
+            if (path == null) {
+                continue;
+            }
+            ResourceModel.Type type = deviceManager.getTypeFromLabel(attr.getKey());
+            if (path[1] != DeviceAttribute.ANY_INSTANCE) {
+                Object value = ValueCodec.fromJson(type, attr.getValue());
+                trace.mark("lookup");
                 requestHandler.WriteResource(registration, path[0], path[1], path[2], value);
+                trace.mark("write");
+                continue;
+            }
+
+            // Wildcard attributes take a value per instance ({"0": v0, "1": v1}) or one value for every instance
+            Map<Integer, Object> values = new TreeMap<>();
+            if (attr.getValue() instanceof JSONObject) {
+                JSONObject perInstance = (JSONObject) attr.getValue();
+                for (String instance : perInstance.keySet()) {
+                    values.put(Integer.parseInt(instance), ValueCodec.fromJson(type, perInstance.get(instance)));
+                }
+            } else {
+                Object value = ValueCodec.fromJson(type, attr.getValue());
+                for (Integer instance : LwM2mHandler.getInstanceIds(registration, path[0])) {
+                    values.put(instance, value);
+                }
+            }
+            trace.mark("lookup");
+            for (Map.Entry<Integer, Object> value : values.entrySet()) {
+                requestHandler.WriteResource(registration, path[0], value.getKey(), path[2], value.getValue());
             }
+            trace.mark("write");
         }
 
         return 0;
@@ -259,41 +622,152 @@ public class LwM2mAgent implements Runnable {
     }
 
 
+    /**
+     * Attribute values carried by a notification. Wildcard attributes are published as an object of
+     * instance id to value, e.g. {"temperature": {"0": 21.5, "1": 19.0}}
+     */
+    private JSONObject buildPayload(LwM2mPath path, LwM2mNode content) {
+        JSONObject payload = new JSONObject();
+        String label = deviceManager.getLabelFromPath(path.toString());
+        if (label != null) {
+            Object value = ValueCodec.toJson(content);
+            if (value != null) {
+                payload.put(label, value);
+            }
+            return payload;
+        }
+
+        Map<Integer, String> wildcards = deviceManager.getWildcardLabels(path.getObjectId());
+        if (wildcards.isEmpty()) {
+            return payload;
+        }
+        if (path.isResource()) {
+            label = wildcards.get(path.getResourceId());
+            Object value = ValueCodec.toJson(content);
+            if (label != null && value != null) {
+                payload.put(label, new JSONObject().put(path.getObjectInstanceId().toString(), value));
+            }
+        } else if (content instanceof LwM2mObject) {
+            for (LwM2mObjectInstance instance : ((LwM2mObject) content).getInstances().values()) {
+                String instanceId = String.valueOf(instance.getId());
+                for (Map.Entry<Integer, String> wildcard : wildcards.entrySet()) {
+                    Object value = ValueCodec.toJson(instance.getResource(wildcard.getKey()));
+                    if (value == null) {
+                        continue;
+                    }
+                    JSONObject values = payload.optJSONObject(wildcard.getValue());
+                    if (values == null) {
+                        values = new JSONObject();
+                        payload.put(wildcard.getValue(), values);
+                    }
+                    values.put(instanceId, value);
+                }
+            }
+        }
+        return payload;
+    }
+
+    // Registration callbacks run on their own lanes keyed by endpoint, so a device's events stay ordered
     private final RegistrationListener registrationListener = new RegistrationListener() {
         public void registered(Registration registration, Registration previousReg,
                                Collection<Observation> previousObsersations) {
-            registerNewDevice(registration);
+            registrationLanes.dispatch(registration.getEndpoint(), () -> onRegistered(registration, previousReg));
         }
 
         public void updated(RegistrationUpdate update, Registration updatedReg, Registration previousReg) {
-            if (deviceManager.getLwm2mRegistration(updatedReg.getId()) == null) {
-                registerNewDevice(updatedReg);
-            }
+            registrationLanes.dispatch(updatedReg.getEndpoint(), () -> onUpdated(update, updatedReg, previousReg));
         }
 
         public void unregistered(Registration registration, Collection<Observation> observations, boolean expired,
                                  Registration newReg) {
-            mLogger.debug("device left: " + registration.getEndpoint());
-            deviceManager.DeregisterDevice(registration.getId());
+            registrationLanes.dispatch(registration.getEndpoint(), () -> onUnregistered(registration, observations));
         }
     };
 
+    private void onRegistered(Registration registration, Registration previousReg) {
+        registrations.inc();
+        // The device registered again without deregistering, what was kept for its previous registration goes
+        if (previousReg != null) {
+            deviceManager.DeregisterDevice(previousReg.getId());
+            requestHandler.forget(previousReg.getId());
+        }
+        requestHandler.onDeviceAwake(registration);
+        registerNewDevice(registration);
+    }
+
+    private void onUpdated(RegistrationUpdate update, Registration updatedReg, Registration previousReg) {
+        requestHandler.onDeviceAwake(updatedReg);
+        if (deviceManager.UpdateRegistration(updatedReg)) {
+            rediscoveriesAvoided.inc();
+            if (update.getObjectLinks() != null) {
+                updateObservations(updatedReg, previousReg);
+            }
+            return;
+        }
+        UnknownEndpoint unknown = unknownEndpoints.get(updatedReg.getEndpoint());
+        if (unknown != null && System.currentTimeMillis() - unknown.since < UNKNOWN_DEVICE_TTL) {
+            rediscoveriesAvoided.inc();
+            return;
+        }
+        rediscoveries.inc();
+        registerNewDevice(updatedReg);
+    }
+
+    private void onUnregistered(Registration registration, Collection<Observation> observations) {
+        mLogger.debug("device left: " + registration.getEndpoint());
+        deregistrations.inc();
+        activeObservations.addAndGet(-observations.size());
+        String deviceId = deviceManager.getDeviceId(registration.getId());
+        deviceManager.DeregisterDevice(registration.getId());
+        requestHandler.forget(registration.getId());
+        unknownEndpoints.remove(registration.getEndpoint());
+        if (deviceId != null) {
+            aggregator.close(deviceId);
+            cluster.release(deviceId);
+        }
+    }
+
     private final ObservationListener observationListener = new ObservationListener() {
         @Override
         public void cancelled(Observation observation) {
+            activeObservations.decrementAndGet();
         }
 
         @Override
         public void onResponse(Observation observation, Registration registration, ObserveResponse response) {
-            JsonElement element = gson.toJsonTree(response.getContent());
-            mLogger.debug("Received notification from [" + observation.getPath() + "] containing value:" + element);
-            JsonObject attrs = new JsonObject();
-            String label = deviceManager.getLabelFromPath(observation.getPath().toString());
-            attrs.add(label, element.getAsJsonObject().get("value"));
+            long start = System.nanoTime();
+            notifications.inc();
+            Tracer.Trace trace = Tracer.start("notification", observation.getPath().toString());
+            trace.mark("receive");
+            notificationLanes.dispatch(observation.getRegistrationId(),
+                    () -> handleNotification(observation, response, trace, start));
+        }
+
+        private void handleNotification(Observation observation, ObserveResponse response, Tracer.Trace trace,
+                                        long start) {
+            trace.mark("queue");
+            LwM2mNode content = response.getContent();
+            trace.mark("decode");
+            mLogger.debug("Received notification from [" + observation.getPath() + "] containing:" + content);
             String deviceId = deviceManager.getDeviceId(observation.getRegistrationId());
+            trace.mark("lookup");
+            requestHandler.getShadow().update(observation.getRegistrationId(), observation.getPath(), content);
+            JSONObject payload = buildPayload(observation.getPath(), content);
             // String service = deviceManager.getDeviceService(deviceId);
             String service = "admin";
-            mIotaManager.updateAttrs(deviceId, service, new JSONObject(attrs.toString()), null);
+            // Attributes with an aggregation policy are published once per window
+            Device device = deviceId == null ? null : deviceManager.getDevice(deviceId);
+            payload = aggregator.offer(deviceId, service, device, payload);
+            if (payload.length() == 0) {
+                trace.finish();
+                return;
+            }
+            trace.mark("payload");
+            // Handed to the publish buffer, kafka sends happen later on its drain thread
+            publisher.publish(deviceId, service, payload);
+            trace.mark("enqueue");
+            trace.finish();
+            notificationLatency.observeSince(start);
         }
 
         @Override
@@ -303,6 +777,7 @@ public class LwM2mAgent implements Runnable {
 
         @Override
         public void newObservation(Observation observation, Registration registration) {
+            activeObservations.incrementAndGet();
         }
     };
 
@@ -314,27 +789,43 @@ public class LwM2mAgent implements Runnable {
 
             // Set encoder/decoders
             builder.setEncoder(new DefaultLwM2mNodeEncoder());
-            LwM2mNodeDecoder decoder = new DefaultLwM2mNodeDecoder();
+            LwM2mNodeDecoder decoder = new FastNodeDecoder();
             builder.setDecoder(decoder);
 
             // Define model provider
             builder.setObjectModelProvider(modelProvider);
 
+            NetworkConfig coapConfig = NetworkTuning.apply(LeshanServerBuilder.createDefaultNetworkConfig());
+            builder.setCoapConfig(coapConfig);
+
+            if (securityStore != null) {
+                builder.setSecurityStore(securityStore);
+                DtlsConnectorConfig.Builder dtlsConfig = new DtlsConnectorConfig.Builder();
+                dtlsConfig.setMaxConnections(maxDtlsSessions);
+                dtlsConfig.setStaleConnectionThreshold(dtlsSessionTimeout);
+                dtlsConfig.setConnectionThreadCount(
+                        coapConfig.getInt(NetworkConfig.Keys.NETWORK_STAGE_RECEIVER_THREAD_COUNT));
+                builder.setDtlsConfig(dtlsConfig);
+            }
 
-            // Start Server
             server = builder.build();
-            server.start();
 
-            // Add Registration Treatment
+            // Initialize Request Handler and listeners before devices can reach the server
+            requestHandler = new LwM2mHandler(server);
+            bulkOperations = new BulkOperations(deviceManager, requestHandler, modelProvider,
+                    Workers.perTaskExecutor("bulk", BulkOperations.PLATFORM_THREADS));
             server.getRegistrationService().addListener(registrationListener);
             server.getObservationService().addListener(observationListener);
 
-            // Initialize Request Handler
-            requestHandler = new LwM2mHandler(server, gson);
+            // Start Server
+            server.start();
+            started = true;
+            mLogger.info("LwM2M server listening on " + server.getUnsecuredAddress()
+                    + (securityStore != null ? " and " + server.getSecuredAddress() : ""));
 
         } catch (Exception e) {
-            e.printStackTrace();
-            mLogger.error(e);
+            failed = true;
+            mLogger.error("Unable to start the LwM2M server", e);
         }
     }
 
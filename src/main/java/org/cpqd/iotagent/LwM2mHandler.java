@@ -8,74 +8,380 @@ Checking if registrations are active is not this class responsibility
 In case of failure any request should fail silently
  */
 
-import com.google.gson.Gson;
-import org.apache.kafka.common.protocol.types.Field;
+import org.eclipse.leshan.Link;
+import org.eclipse.leshan.core.node.LwM2mPath;
+import org.eclipse.leshan.core.request.ContentFormat;
+import org.eclipse.leshan.core.request.DownlinkRequest;
+import org.eclipse.leshan.core.request.ExecuteRequest;
 import org.eclipse.leshan.core.request.ObserveRequest;
 import org.apache.log4j.Logger;
 import org.eclipse.leshan.core.request.ReadRequest;
 import org.eclipse.leshan.core.request.WriteRequest;
+import org.eclipse.leshan.core.response.ExecuteResponse;
+import org.eclipse.leshan.core.response.LwM2mResponse;
 import org.eclipse.leshan.core.response.ObserveResponse;
 import org.eclipse.leshan.core.response.ReadResponse;
 import org.eclipse.leshan.core.response.WriteResponse;
 import org.eclipse.leshan.server.LwM2mServer;
 import org.eclipse.leshan.server.registration.Registration;
 
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
 public class LwM2mHandler {
     private Logger mLogger = Logger.getLogger(LwM2mHandler.class);
 
-    private Gson gson;
+    // Queue mode devices are considered awake this long after their last registration update
+    private static final long AWAKE_WINDOW = 30000;
+    // Longest a request may take, waiting for a permit and retries included
+    private static volatile long requestDeadline = DeviceLatencyProfile.MAX_TIMEOUT;
+
     private LwM2mServer server;
-    private long readTimout;
-    private long writeTimeout;
+    private Map<String, DeviceLatencyProfile> profiles = new ConcurrentHashMap<>();
+    private Map<String, ContentFormat> formats = new ConcurrentHashMap<>();
+    private CommandQueue commands = new CommandQueue();
+    private DeviceShadow shadow = new DeviceShadow();
+    // Makes the queue key of each execute unique
+    private AtomicLong executes = new AtomicLong();
+
+    private static final AgentMetrics.Histogram readLatency = requestLatency("read");
+    private static final AgentMetrics.Histogram observeLatency = requestLatency("observe");
+    private static final AgentMetrics.Histogram writeLatency = requestLatency("write");
+    private static final AgentMetrics.Histogram executeLatency = requestLatency("execute");
+    private static final AgentMetrics.Counter readErrors = requestErrors("read");
+    private static final AgentMetrics.Counter observeErrors = requestErrors("observe");
+    private static final AgentMetrics.Counter writeErrors = requestErrors("write");
+    private static final AgentMetrics.Counter executeErrors = requestErrors("execute");
+
+    private static AgentMetrics.Histogram requestLatency(String operation) {
+        return AgentMetrics.histogram("lwm2m_request_seconds", "operation=\"" + operation + "\"",
+                "Latency of requests sent to devices");
+    }
 
-    public LwM2mHandler(LwM2mServer server, Gson gson) {
-        this.readTimout = 5000;
-        this.writeTimeout = 5000;
+    private static AgentMetrics.Counter requestErrors(String operation) {
+        return AgentMetrics.counter("lwm2m_request_errors_total", "operation=\"" + operation + "\"",
+                "Requests to devices that failed or timed out");
+    }
+
+    public LwM2mHandler(LwM2mServer server) {
         this.server = server;
-        this.gson = gson;
+    }
+
+    public static void setRequestDeadline(long deadlineMs) {
+        requestDeadline = deadlineMs;
+    }
+
+    private DeviceLatencyProfile getProfile(Registration registration) {
+        return profiles.computeIfAbsent(registration.getId(),
+                id -> new DeviceLatencyProfile(registration.getBindingMode().name().contains("Q")));
+    }
+
+    /**
+     * TLV unless the device announces lwm2m+json as its preferred format (ct attribute of its root link)
+     * Every LwM2M 1.0 client supports TLV, and it is the most compact of the formats Leshan offers
+     */
+    private ContentFormat getFormat(Registration registration) {
+        return formats.computeIfAbsent(registration.getId(), id -> selectFormat(registration));
+    }
+
+    static ContentFormat selectFormat(Registration registration) {
+        Link[] links = registration.getObjectLinks();
+        if (links != null) {
+            for (Link link : links) {
+                if (!link.getUrl().equals(registration.getRootPath()) || link.getAttributes() == null) {
+                    continue;
+                }
+                Object ct = link.getAttributes().get("ct");
+                if (ct != null && ct.toString().replace("\"", "").equals(String.valueOf(ContentFormat.JSON_CODE))) {
+                    return ContentFormat.JSON;
+                }
+            }
+        }
+        return ContentFormat.TLV;
+    }
+
+    private <T extends LwM2mResponse> T send(Registration registration, DownlinkRequest<T> request)
+            throws InterruptedException {
+        return send(registration, request, true);
+    }
+
+    /**
+     * Sends the request with a timeout derived from the device round trip times, retrying within its budget
+     * and the request deadline unless retry is false (requests that are not idempotent).
+     * The device permit is only held while an attempt is in flight. Returns null if the device never answered
+     */
+    private <T extends LwM2mResponse> T send(Registration registration, DownlinkRequest<T> request, boolean retry)
+            throws InterruptedException {
+        DeviceLatencyProfile profile = getProfile(registration);
+        int attempts = retry ? 1 + profile.getRetryBudget() : 1;
+        long deadline = System.currentTimeMillis() + requestDeadline;
+        BackendLimit devices = BackendLimit.of(BackendLimit.DEVICES);
+        for (int i = 0; i < attempts; i++) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0 || !devices.tryAcquire(remaining)) {
+                break;
+            }
+            long start = System.nanoTime();
+            T response;
+            try {
+                remaining = deadline - System.currentTimeMillis();
+                response = server.send(registration, request, Math.max(1, Math.min(profile.getTimeout(), remaining)));
+            } finally {
+                devices.release();
+            }
+            if (response != null) {
+                profile.onResponse((System.nanoTime() - start) / 1000000);
+                return response;
+            }
+            profile.onTimeout();
+            mLogger.debug(String.format("%s to %s timed out, next timeout %d ms", request, registration.getEndpoint(),
+                    profile.getTimeout()));
+        }
+        mLogger.debug(String.format("%s to %s got no answer within its retries and deadline", request,
+                registration.getEndpoint()));
+        return null;
+    }
+
+    /**
+     * Instances of an object the device announced in its object links
+     */
+    public static List<Integer> getInstanceIds(Registration registration, int objectId) {
+        List<Integer> instances = new ArrayList<>();
+        String prefix = registration.getRootPath() + objectId + "/";
+        for (Link link : registration.getObjectLinks()) {
+            String url = link.getUrl();
+            if (url.startsWith(prefix) && url.indexOf('/', prefix.length()) < 0) {
+                try {
+                    instances.add(Integer.parseInt(url.substring(prefix.length())));
+                } catch (NumberFormatException e) {
+                    // Not an instance link (e.g. "/3303/x"), ignored
+                }
+            }
+        }
+        return instances;
+    }
+
+    /**
+     * Object instances ("3303/0") the device announced in its object links
+     */
+    public static Set<String> getInstancePaths(Registration registration) {
+        Set<String> instances = new HashSet<>();
+        String root = registration.getRootPath();
+        for (Link link : registration.getObjectLinks()) {
+            String url = link.getUrl();
+            if (url.startsWith(root) && url.length() > root.length()) {
+                String path = url.substring(root.length());
+                if (path.indexOf('/') > 0) {
+                    instances.add(path);
+                }
+            }
+        }
+        return instances;
+    }
+
+    /**
+     * The device contacted the server (registration or update), commands held while it was asleep are sent
+     */
+    public void onDeviceAwake(Registration registration) {
+        getProfile(registration).onSeen();
+        commands.flush(registration);
+    }
+
+    public void forget(String registrationId) {
+        profiles.remove(registrationId);
+        formats.remove(registrationId);
+        shadow.forget(registrationId);
+    }
+
+    public DeviceShadow getShadow() {
+        return shadow;
+    }
+
+    /**
+     * Reads from the shadow if the value is younger than maxAge milliseconds, from the device otherwise
+     */
+    public String ReadResource(Registration registration, int objectId, int objectInstanceId, int resourceId,
+                               long maxAge) {
+        Object value = shadow.get(registration.getId(), objectId, objectInstanceId, resourceId, maxAge);
+        if (value != null) {
+            return value.toString();
+        }
+        return ReadResource(registration, objectId, objectInstanceId, resourceId);
+    }
+
+    public boolean isAwake(Registration registration) {
+        return getProfile(registration).isAwake(AWAKE_WINDOW);
+    }
+
+    /**
+     * Holds the command until the next update if the device is in queue mode and sleeping
+     * Commands with the same key replace each other
+     */
+    public boolean deferIfAsleep(Registration registration, String key, Consumer<Registration> command) {
+        if (isAwake(registration)) {
+            return false;
+        }
+        mLogger.debug("Device " + registration.getEndpoint() + " is sleeping, " + key + " queued");
+        commands.offer(registration.getEndpoint(), key, command);
+        return true;
     }
 
     public String ReadResource(Registration registration, int objectId, int objectInstanceId, int resourceId) {
         String value = "";
+        if (!isAwake(registration)) {
+            mLogger.debug("Device " + registration.getEndpoint() + " is sleeping, read skipped");
+            return value;
+        }
+        long start = System.nanoTime();
         try {
-            ReadResponse response = server.send(registration, new ReadRequest(objectId, objectInstanceId, resourceId), readTimout);
-            value = gson.toJsonTree(response.getContent()).getAsJsonObject().get("value").toString().replaceAll("^\"|\"$", "");
+            ContentFormat format = getFormat(registration);
+            ReadResponse response = send(registration, new ReadRequest(format, objectId, objectInstanceId, resourceId));
+            readLatency.observeSince(start);
+            if (response == null) {
+                readErrors.inc();
+                return value;
+            }
+            value = ValueCodec.toText(response.getContent());
+            shadow.update(registration.getId(), new LwM2mPath(objectId, objectInstanceId, resourceId),
+                    response.getContent());
         } catch (Exception e) {
-            // Todo(jsiloto): Log errors here
-            e.printStackTrace();
-            mLogger.error(e);
+            readErrors.inc();
+            mLogger.error("Read of " + objectId + "/" + objectInstanceId + "/" + resourceId + " on "
+                    + registration.getEndpoint() + " failed", e);
         }
         return value;
     }
 
-    public void ObserveResource(Registration registration, int objectId, int objectInstanceId, int resourceId) {
+    /**
+     * Returns false if the device refused or did not answer, queued requests count as accepted
+     */
+    public boolean ObserveResource(Registration registration, int objectId, int objectInstanceId, int resourceId) {
+        if (deferIfAsleep(registration, "observe " + objectId + "/" + objectInstanceId + "/" + resourceId,
+                r -> ObserveResource(r, objectId, objectInstanceId, resourceId))) {
+            return true;
+        }
+        long start = System.nanoTime();
+        try {
+            ContentFormat format = getFormat(registration);
+            ObserveResponse response = send(registration, new ObserveRequest(format, objectId, objectInstanceId, resourceId));
+            observeLatency.observeSince(start);
+            if (response == null || !response.isSuccess()) {
+                observeErrors.inc();
+                return false;
+            }
+            return true;
+        } catch (Exception e) {
+            observeErrors.inc();
+            mLogger.error("Observe of " + objectId + "/" + objectInstanceId + "/" + resourceId + " on "
+                    + registration.getEndpoint() + " failed", e);
+        }
+        return false;
+    }
+
+
+    /**
+     * Observes every instance of an object with a single request
+     */
+    public void ObserveObject(Registration registration, int objectId) {
+        if (deferIfAsleep(registration, "observe " + objectId, r -> ObserveObject(r, objectId))) {
+            return;
+        }
+        long start = System.nanoTime();
         try {
-            ObserveResponse response = server.send(registration, new ObserveRequest(objectId, objectInstanceId, resourceId), readTimout);
+            ObserveResponse response = send(registration, new ObserveRequest(getFormat(registration), objectId));
+            observeLatency.observeSince(start);
+            if (response == null || !response.isSuccess()) {
+                observeErrors.inc();
+            }
         } catch (Exception e) {
-            // Todo(jsiloto): Log errors here
-            e.printStackTrace();
-            mLogger.error(e);
+            observeErrors.inc();
+            mLogger.error("Observe of " + objectId + " on " + registration.getEndpoint() + " failed", e);
         }
     }
 
+    /**
+     * Cancels the observations of a path ("/3303/0/5700" or "/3303"), returns how many were cancelled
+     */
+    public int CancelObservations(Registration registration, String path) {
+        return server.getObservationService().cancelObservations(registration, path);
+    }
 
-    public void WriteResource(Registration registration, int objectId, int objectInstanceId, int resourceId, Object value) {
+    /**
+     * Returns false if the device refused or did not answer, queued requests count as accepted
+     */
+    public boolean WriteResource(Registration registration, int objectId, int objectInstanceId, int resourceId, Object value) {
+        if (deferIfAsleep(registration, "write " + objectId + "/" + objectInstanceId + "/" + resourceId,
+                r -> WriteResource(r, objectId, objectInstanceId, resourceId, value))) {
+            return true;
+        }
+        long start = System.nanoTime();
         try {
+            ContentFormat format = getFormat(registration);
+            WriteResponse response = null;
             if (value instanceof String) {
-                WriteResponse response = server.send(registration, new WriteRequest(objectId, objectInstanceId, resourceId, (String) value));
+                response = send(registration, new WriteRequest(format, objectId, objectInstanceId, resourceId, (String) value));
             } else if (value instanceof Double) {
-                WriteResponse response = server.send(registration, new WriteRequest(objectId, objectInstanceId, resourceId, (Double) value));
+                response = send(registration, new WriteRequest(format, objectId, objectInstanceId, resourceId, (Double) value));
             } else if (value instanceof Boolean) {
-                WriteResponse response = server.send(registration, new WriteRequest(objectId, objectInstanceId, resourceId, (Boolean) value));
-            } else if (value instanceof Integer) {
-                WriteResponse response = server.send(registration, new WriteRequest(objectId, objectInstanceId, resourceId, (Integer) value));
+                response = send(registration, new WriteRequest(format, objectId, objectInstanceId, resourceId, (Boolean) value));
+            } else if (value instanceof Long || value instanceof Integer) {
+                long number = ((Number) value).longValue();
+                response = send(registration, new WriteRequest(format, objectId, objectInstanceId, resourceId, number));
+            } else if (value instanceof Date) {
+                response = send(registration, new WriteRequest(format, objectId, objectInstanceId, resourceId, (Date) value));
+            } else if (value instanceof byte[]) {
+                response = send(registration, new WriteRequest(format, objectId, objectInstanceId, resourceId, (byte[]) value));
             }
+            writeLatency.observeSince(start);
+            // The device may hold the new value or not, it is read again when needed
+            shadow.invalidate(registration.getId(), objectId, objectInstanceId, resourceId);
+            if (response == null || !response.isSuccess()) {
+                writeErrors.inc();
+                return false;
+            }
+            return true;
+
+        } catch (Exception e) {
+            writeErrors.inc();
+            mLogger.error("Write of " + objectId + "/" + objectInstanceId + "/" + resourceId + " on "
+                    + registration.getEndpoint() + " failed", e);
+        }
+        return false;
+    }
 
+    /**
+     * Returns false if the device refused or did not answer, queued requests count as accepted
+     */
+    public boolean ExecuteResource(Registration registration, int objectId, int objectInstanceId, int resourceId) {
+        // Two executes are two actions (e.g. reboot then update), they are never coalesced
+        if (deferIfAsleep(registration, "execute " + objectId + "/" + objectInstanceId + "/" + resourceId
+                + " #" + executes.incrementAndGet(), r -> ExecuteResource(r, objectId, objectInstanceId, resourceId))) {
+            return true;
+        }
+        long start = System.nanoTime();
+        try {
+            // Sent once, a retry after a lost response would execute it twice
+            ExecuteResponse response = send(registration, new ExecuteRequest(objectId, objectInstanceId, resourceId),
+                    false);
+            executeLatency.observeSince(start);
+            if (response == null || !response.isSuccess()) {
+                executeErrors.inc();
+                return false;
+            }
+            return true;
         } catch (Exception e) {
-            // Todo(jsiloto): Log errors here
-            e.printStackTrace();
-            mLogger.error(e);
+            executeErrors.inc();
+            mLogger.error("Execute of " + objectId + "/" + objectInstanceId + "/" + resourceId + " on "
+                    + registration.getEndpoint() + " failed", e);
         }
+        return false;
     }
 
 
@@ -0,0 +1,53 @@
+package org.cpqd.iotagent;
+
+import org.eclipse.californium.core.network.config.NetworkConfig;
+
+/*
+  Thread counts of the CoAP stacks (LwM2M server and firmware file server), set once at startup.
+  Zero keeps the value already in the NetworkConfig (Californium default or fileServerCoAP.properties).
+  Registration and notification callbacks leave the CoAP protocol threads for lanes of their own.
+  Java 8 has no SO_REUSEPORT, so each endpoint keeps one socket served by several receiver threads.
+ */
+public class NetworkTuning {
+    private static int receiverThreads;
+    private static int senderThreads;
+    private static int protocolThreads;
+    // Agent side workers, registrations block on device reads and device-manager lookups
+    private static int registrationThreads = Runtime.getRuntime().availableProcessors();
+    private static int notificationThreads = Runtime.getRuntime().availableProcessors();
+
+    private NetworkTuning() {
+    }
+
+    public static void configure(int receivers, int senders, int protocol) {
+        receiverThreads = receivers;
+        senderThreads = senders;
+        protocolThreads = protocol;
+    }
+
+    public static void setListenerThreads(int registration, int notification) {
+        registrationThreads = registration;
+        notificationThreads = notification;
+    }
+
+    public static int getRegistrationThreads() {
+        return registrationThreads;
+    }
+
+    public static int getNotificationThreads() {
+        return notificationThreads;
+    }
+
+    public static NetworkConfig apply(NetworkConfig config) {
+        if (receiverThreads > 0) {
+            config.setInt(NetworkConfig.Keys.NETWORK_STAGE_RECEIVER_THREAD_COUNT, receiverThreads);
+        }
+        if (senderThreads > 0) {
+            config.setInt(NetworkConfig.Keys.NETWORK_STAGE_SENDER_THREAD_COUNT, senderThreads);
+        }
+        if (protocolThreads > 0) {
+            config.setInt(NetworkConfig.Keys.PROTOCOL_STAGE_THREAD_COUNT, protocolThreads);
+        }
+        return config;
+    }
+}
@@ -0,0 +1,132 @@
+package org.cpqd.iotagent;
+
+import com.mashape.unirest.http.HttpResponse;
+import com.mashape.unirest.http.Unirest;
+import org.apache.log4j.Logger;
+import spark.Spark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/*
+  ClusterStore shared among a fixed set of peer nodes.
+  Each node only stores the devices it owns, lookups that miss locally are answered by asking the peers
+  through the internal HTTP channel (GET /cluster/owner/:id). Peers are asked in parallel with a short
+  timeout, and their answer, including "nobody", is cached for a while.
+ */
+public class PeerClusterStore implements ClusterStore {
+    private Logger mLogger = Logger.getLogger(PeerClusterStore.class);
+
+    private static final long PEER_TIMEOUT = 500;
+    private static final long OWNER_TTL = 30000;
+    private static final long NO_OWNER_TTL = 5000;
+    private static final String NO_OWNER = "";
+
+    private String nodeId;
+    private Map<String, String> peers;
+    private ClusterAuth auth;
+    private InMemoryClusterStore local = new InMemoryClusterStore();
+    // Owners learned from peers, with the time they expire
+    private Map<String, CachedOwner> owners = new ConcurrentHashMap<>();
+
+    private static class CachedOwner {
+        final String owner;
+        final long expires;
+
+        CachedOwner(String owner, long expires) {
+            this.owner = owner;
+            this.expires = expires;
+        }
+    }
+
+    public PeerClusterStore(String nodeId, Map<String, String> peers, ClusterAuth auth) {
+        this.nodeId = nodeId;
+        this.peers = peers;
+        this.auth = auth;
+
+        // Peers must only answer for their own devices, otherwise lookups would bounce around the cluster
+        Spark.get("/cluster/owner/:id", (request, response) -> {
+            if (!auth.allows(request)) {
+                response.status(403);
+                return "";
+            }
+            String owner = local.getOwner(request.params(":id"));
+            if (owner == null) {
+                response.status(404);
+                return "";
+            }
+            return owner;
+        });
+    }
+
+    @Override
+    public void claim(String deviceId, String nodeId) {
+        local.claim(deviceId, nodeId);
+        owners.remove(deviceId);
+    }
+
+    @Override
+    public void release(String deviceId, String nodeId) {
+        local.release(deviceId, nodeId);
+    }
+
+    @Override
+    public void invalidate(String deviceId) {
+        owners.remove(deviceId);
+    }
+
+    @Override
+    public String getOwner(String deviceId) {
+        String owner = local.getOwner(deviceId);
+        if (owner != null) {
+            return owner;
+        }
+        CachedOwner cached = owners.get(deviceId);
+        if (cached != null && cached.expires > System.currentTimeMillis()) {
+            return cached.owner == NO_OWNER ? null : cached.owner;
+        }
+
+        owner = askPeers(deviceId);
+        long ttl = owner == null ? NO_OWNER_TTL : OWNER_TTL;
+        owners.put(deviceId, new CachedOwner(owner == null ? NO_OWNER : owner, System.currentTimeMillis() + ttl));
+        return owner;
+    }
+
+    private String askPeers(String deviceId) {
+        List<CompletableFuture<String>> answers = new ArrayList<>();
+        for (Map.Entry<String, String> peer : peers.entrySet()) {
+            if (peer.getKey().equals(nodeId)) {
+                continue;
+            }
+            answers.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    HttpResponse<String> response = Unirest.get(peer.getValue() + "/cluster/owner/" + deviceId)
+                            .header(ClusterAuth.HEADER, auth.getToken())
+                            .asString();
+                    return response.getStatus() == 200 ? response.getBody() : null;
+                } catch (Exception e) {
+                    mLogger.warn("Unable to reach peer " + peer.getKey() + ": " + e);
+                    return null;
+                }
+            }));
+        }
+
+        // Every peer is asked at once, the whole lookup takes at most PEER_TIMEOUT
+        long deadline = System.currentTimeMillis() + PEER_TIMEOUT;
+        for (CompletableFuture<String> answer : answers) {
+            try {
+                String owner = answer.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                if (owner != null) {
+                    return owner;
+                }
+            } catch (Exception e) {
+                mLogger.debug("No answer from a peer about " + deviceId + ": " + e);
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,156 @@
+package org.cpqd.iotagent;
+
+import org.apache.log4j.Logger;
+import org.json.JSONObject;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+  Decouples the notification path from kafka.
+  Updates are queued per device and handed to the publisher by a drain thread. While the publisher keeps
+  up every update goes through as is; when it falls behind, updates of a device still waiting are merged,
+  so only the newest value of each attribute is kept. The buffer holds at most capacity attribute values,
+  past that the oldest devices waiting are dropped. Callers never block on kafka.
+ */
+public class PublishBuffer implements AttributePublisher {
+    private Logger mLogger = Logger.getLogger(PublishBuffer.class);
+
+    private static int defaultCapacity = 100000;
+
+    private final AttributePublisher publisher;
+    private final int capacity;
+    // Waiting updates by device id, oldest first
+    private final LinkedHashMap<String, Pending> pending = new LinkedHashMap<>();
+    private int pendingValues;
+    private int publishing;
+    private volatile boolean running = true;
+
+    private static final AgentMetrics.Counter overwritten = AgentMetrics.counter("publish_buffer_overwritten_total",
+            "Attribute values replaced by a newer one before being published");
+    private static final AgentMetrics.Counter dropped = AgentMetrics.counter("publish_buffer_dropped_total",
+            "Attribute values dropped because the publish buffer was full");
+    private static final AgentMetrics.Counter failed = AgentMetrics.counter("publish_buffer_failed_total",
+            "Attribute updates the publisher failed to send");
+
+    private static class Pending {
+        final String deviceId;
+        String service;
+        final JSONObject attrs;
+
+        Pending(String deviceId, String service, JSONObject attrs) {
+            this.deviceId = deviceId;
+            this.service = service;
+            this.attrs = attrs;
+        }
+    }
+
+    /**
+     * Attribute values held while kafka is behind, for buffers created afterwards
+     */
+    public static void setCapacity(int capacity) {
+        defaultCapacity = capacity;
+    }
+
+    public PublishBuffer(AttributePublisher publisher) {
+        this(publisher, defaultCapacity);
+    }
+
+    public PublishBuffer(AttributePublisher publisher, int capacity) {
+        this.publisher = publisher;
+        this.capacity = capacity;
+        AgentMetrics.gauge("publish_buffer_values", "Attribute values waiting to be published", this::size);
+        Thread drainer = Workers.threadFactory("kafka-publish").newThread(this::drainLoop);
+        drainer.setDaemon(true);
+        drainer.start();
+    }
+
+    /**
+     * Queues the update, the attrs object is owned by the buffer from now on
+     */
+    @Override
+    public void publish(String deviceId, String service, JSONObject attrs) {
+        synchronized (pending) {
+            Pending waiting = pending.get(deviceId);
+            if (waiting == null) {
+                pending.put(deviceId, new Pending(deviceId, service, attrs));
+                pendingValues += attrs.length();
+            } else {
+                waiting.service = service;
+                for (String label : attrs.keySet()) {
+                    if (waiting.attrs.has(label)) {
+                        overwritten.inc();
+                    } else {
+                        pendingValues++;
+                    }
+                    waiting.attrs.put(label, attrs.get(label));
+                }
+            }
+
+            Iterator<Pending> oldest = pending.values().iterator();
+            while (pendingValues > capacity && oldest.hasNext()) {
+                int values = oldest.next().attrs.length();
+                oldest.remove();
+                pendingValues -= values;
+                dropped.add(values);
+            }
+            pending.notifyAll();
+        }
+    }
+
+    public int size() {
+        synchronized (pending) {
+            return pendingValues;
+        }
+    }
+
+    /**
+     * Stops the drain thread once what is waiting was published, or after timeoutMs
+     */
+    public void drain(long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        synchronized (pending) {
+            while ((!pending.isEmpty() || publishing > 0) && System.currentTimeMillis() < deadline) {
+                pending.wait(Math.max(1, deadline - System.currentTimeMillis()));
+            }
+            running = false;
+            pending.notifyAll();
+        }
+    }
+
+    private void drainLoop() {
+        while (running) {
+            Pending next;
+            synchronized (pending) {
+                while (pending.isEmpty() && running) {
+                    try {
+                        pending.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (!running) {
+                    return;
+                }
+                Iterator<Map.Entry<String, Pending>> head = pending.entrySet().iterator();
+                next = head.next().getValue();
+                head.remove();
+                pendingValues -= next.attrs.length();
+                publishing++;
+            }
+
+            try {
+                publisher.publish(next.deviceId, next.service, next.attrs);
+            } catch (Exception e) {
+                failed.inc();
+                mLogger.error("Unable to publish attributes of " + next.deviceId, e);
+            } finally {
+                synchronized (pending) {
+                    publishing--;
+                    pending.notifyAll();
+                }
+            }
+        }
+    }
+}
@@ -21,13 +21,16 @@
 package org.cpqd.iotagent;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.net.InetSocketAddress;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.eclipse.californium.core.CoapResource;
 import org.eclipse.californium.core.CoapServer;
+import org.eclipse.californium.core.coap.BlockOption;
 import org.eclipse.californium.core.coap.CoAP;
 import org.eclipse.californium.core.coap.MediaTypeRegistry;
 import org.eclipse.californium.core.coap.Request;
@@ -46,8 +49,37 @@ import org.slf4j.LoggerFactory;
 public class SimpleFileServer extends CoapServer {
 	private static final Logger LOG = LoggerFactory.getLogger(SimpleFileServer.class.getName());
 
+	// Blockwise transfers by peer and file, with the time their last block was served
+	private static final Map<String, Long> transfersInFlight = new ConcurrentHashMap<>();
+	private static final AgentMetrics.Counter bytesServed = AgentMetrics.counter("fileserver_bytes_served_total",
+			"Firmware bytes handed to the CoAP stack");
+	private static final AgentMetrics.Counter filesServed = AgentMetrics.counter("fileserver_files_served_total",
+			"Firmware files served");
+
+	static {
+		AgentMetrics.gauge("fileserver_transfers_in_flight", "Firmware transfers between their first and last block",
+				SimpleFileServer::getTransfersInFlight);
+	}
+
+	/**
+	 * Transfers that did not reach their last block, those idle for longer than the blockwise status lifetime
+	 * were abandoned by the device and are no longer counted
+	 */
+	public static int getTransfersInFlight() {
+		long expired = System.currentTimeMillis()
+				- NetworkConfig.getStandard().getLong(NetworkConfig.Keys.BLOCKWISE_STATUS_LIFETIME);
+		Iterator<Long> it = transfersInFlight.values().iterator();
+		while (it.hasNext()) {
+			if (it.next() < expired) {
+				it.remove();
+			}
+		}
+		return transfersInFlight.size();
+	}
+
 	public SimpleFileServer(File coapConfigFile, PskStore pskStore) {
 		NetworkConfig.createStandardWithFile(coapConfigFile);
+		NetworkTuning.apply(NetworkConfig.getStandard());
 		
 		int coapPort = NetworkConfig.getStandard().getInt(NetworkConfig.Keys.COAP_PORT);
 		int secureCoapPort = NetworkConfig.getStandard().getInt(NetworkConfig.Keys.COAP_SECURE_PORT);
@@ -55,6 +87,9 @@ public class SimpleFileServer extends CoapServer {
 		DtlsConnectorConfig.Builder config = new DtlsConnectorConfig.Builder();		
 		config.setAddress(new InetSocketAddress(secureCoapPort));
 		config.setPskStore(pskStore);
+		// Keep sessions of the whole fleet so devices resume them instead of doing a full handshake
+		config.setMaxConnections(NetworkConfig.getStandard().getInt(NetworkConfig.Keys.MAX_ACTIVE_PEERS));
+		config.setStaleConnectionThreshold(NetworkConfig.getStandard().getLong(NetworkConfig.Keys.SECURE_SESSION_TIMEOUT));
 
 		DTLSConnector connector = new DTLSConnector(config.build());
 		this.addEndpoint(new CoapEndpoint(connector, NetworkConfig.getStandard()));
@@ -160,21 +195,43 @@ public class SimpleFileServer extends CoapServer {
 				exchange.respond(CoAP.ResponseCode.INTERNAL_SERVER_ERROR);
 				return;
 			}
-			try (InputStream in = new FileInputStream(file)) {
-				byte[] content = new byte[(int) length];
-				int r = in.read(content);
-				if (length == r) {
-					Response response = new Response(CoAP.ResponseCode.CONTENT);
-					response.setPayload(content);
-					response.getOptions().setSize2((int) length);
-					response.getOptions().setContentFormat(accept);
-					exchange.respond(response);
+			// Files are sliced here rather than by the CoAP stack, so every block of a transfer is seen
+			BlockOption block2 = request.getOptions().getBlock2();
+			if (block2 == null) {
+				int preferred = NetworkConfig.getStandard().getInt(NetworkConfig.Keys.PREFERRED_BLOCK_SIZE);
+				block2 = new BlockOption(BlockOption.size2Szx(preferred), false, 0);
+			}
+			long offset = (long) block2.getNum() * block2.getSize();
+			if (offset >= length && length > 0) {
+				exchange.respond(CoAP.ResponseCode.BAD_OPTION);
+				return;
+			}
+			int size = (int) Math.min(block2.getSize(), length - offset);
+			boolean more = offset + size < length;
+			String transfer = exchange.getSourceAddress().getHostAddress() + ":" + exchange.getSourcePort() + "/" + path;
+
+			try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+				byte[] content = new byte[size];
+				in.seek(offset);
+				in.readFully(content);
+				Response response = new Response(CoAP.ResponseCode.CONTENT);
+				response.setPayload(content);
+				response.getOptions().setSize2((int) length);
+				response.getOptions().setContentFormat(accept);
+				if (more || offset > 0) {
+					response.getOptions().setBlock2(block2.getSzx(), more, block2.getNum());
+				}
+				exchange.respond(response);
+				bytesServed.add(size);
+				if (more) {
+					transfersInFlight.put(transfer, System.currentTimeMillis());
 				} else {
-					LOG.warn("File {} could not be read in!", file.getAbsolutePath());
-					exchange.respond(CoAP.ResponseCode.INTERNAL_SERVER_ERROR);
+					transfersInFlight.remove(transfer);
+					filesServed.inc();
 				}
 			} catch (IOException ex) {
 				LOG.warn("File {}:", file.getAbsolutePath(), ex);
+				transfersInFlight.remove(transfer);
 				exchange.respond(CoAP.ResponseCode.INTERNAL_SERVER_ERROR);
 			}
 		}
@@ -0,0 +1,132 @@
+package org.cpqd.iotagent;
+
+import org.apache.log4j.Logger;
+import org.json.JSONObject;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+  Writes attribute updates to the disk spool (see TelemetrySpool) while the publisher is unhealthy or
+  fails, and replays them in order once it recovers.
+  Nothing is published directly while the spool holds records, so updates keep their order. Replay runs at
+  replayRate per second, or twice the rate new updates arrive if that is higher, so the backlog always
+  shrinks; being synchronous it never goes faster than kafka accepts the updates.
+ */
+public class SpoolingPublisher implements AttributePublisher {
+    private Logger mLogger = Logger.getLogger(SpoolingPublisher.class);
+
+    private static final long RETRY_INTERVAL = 1000;
+    private static final long RATE_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+    private static TelemetrySpool defaultSpool;
+    private static int defaultReplayRate = 1000;
+
+    private final AttributePublisher publisher;
+    private final TelemetrySpool spool;
+    private final int replayRate;
+    private final AtomicLong arrivals = new AtomicLong();
+    // Updates received per second, smoothed
+    private volatile double arrivalRate;
+    private volatile long replayInterval;
+
+    private static final AgentMetrics.Counter replayed = AgentMetrics.counter("spool_records_replayed_total",
+            "Spooled attribute updates published after kafka recovered");
+
+    /**
+     * Spool used by the agent's kafka publisher, none by default
+     */
+    public static void setSpool(TelemetrySpool spool, int replayRate) {
+        defaultSpool = spool;
+        defaultReplayRate = replayRate;
+    }
+
+    /**
+     * The publisher behind the configured spool, or the publisher itself when there is none
+     */
+    public static AttributePublisher wrap(AttributePublisher publisher) {
+        if (defaultSpool == null) {
+            return publisher;
+        }
+        return new SpoolingPublisher(publisher, defaultSpool, defaultReplayRate);
+    }
+
+    public SpoolingPublisher(AttributePublisher publisher, TelemetrySpool spool, int replayRate) {
+        this.publisher = publisher;
+        this.spool = spool;
+        this.replayRate = Math.max(1, replayRate);
+        this.replayInterval = RATE_INTERVAL / this.replayRate;
+        AgentMetrics.gauge("spool_replay_rate", "Spooled attribute updates replayed per second at most",
+                () -> RATE_INTERVAL / replayInterval);
+        Thread replayer = Workers.threadFactory("spool-replay").newThread(this::replayLoop);
+        replayer.setDaemon(true);
+        replayer.start();
+    }
+
+    @Override
+    public void publish(String deviceId, String service, JSONObject attrs) {
+        arrivals.incrementAndGet();
+        if (!spool.isEmpty() || !publisher.isHealthy()) {
+            spool.append(deviceId, service, attrs);
+            return;
+        }
+        try {
+            publisher.publish(deviceId, service, attrs);
+        } catch (RuntimeException e) {
+            mLogger.warn("Publishing failed, spooling attributes of " + deviceId + ": " + e.getMessage());
+            spool.append(deviceId, service, attrs);
+        }
+    }
+
+    @Override
+    public boolean isHealthy() {
+        return publisher.isHealthy();
+    }
+
+    /**
+     * Replays at twice the arrival rate when that is above the configured rate, otherwise updates
+     * arriving faster than replayRate would keep the spool from ever draining
+     */
+    private void adjustRate(long elapsedNanos) {
+        double rate = arrivals.getAndSet(0) * (double) RATE_INTERVAL / elapsedNanos;
+        arrivalRate = arrivalRate == 0 ? rate : 0.7 * arrivalRate + 0.3 * rate;
+        replayInterval = RATE_INTERVAL / Math.max(replayRate, (long) (2 * arrivalRate));
+    }
+
+    private void replayLoop() {
+        long next = System.nanoTime();
+        long lastAdjust = next;
+        while (!Thread.currentThread().isInterrupted()) {
+            long now = System.nanoTime();
+            if (now - lastAdjust >= RATE_INTERVAL) {
+                adjustRate(now - lastAdjust);
+                lastAdjust = now;
+            }
+            TelemetrySpool.Record record = publisher.isHealthy() ? spool.peek() : null;
+            if (record == null) {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(RETRY_INTERVAL));
+                next = System.nanoTime();
+                continue;
+            }
+            try {
+                publisher.publish(record.deviceId, record.service, record.attrs);
+                spool.commit(record);
+                replayed.inc();
+            } catch (RuntimeException e) {
+                mLogger.warn("Replay failed, retrying: " + e.getMessage());
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(RETRY_INTERVAL));
+                next = System.nanoTime();
+                continue;
+            }
+            // Paced so that a backlog does not flood kafka once it is back
+            next += replayInterval;
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            } else if (wait < -replayInterval) {
+                next = System.nanoTime();
+            }
+        }
+    }
+}
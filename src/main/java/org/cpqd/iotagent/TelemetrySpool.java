@@ -0,0 +1,369 @@
+package org.cpqd.iotagent;
+
+import org.apache.log4j.Logger;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/*
+  Append-only log of attribute updates kept on disk while kafka is unavailable.
+  The log is a sequence of memory-mapped segment files of a fixed size, written at the tail and read
+  back in order from the head. Each segment starts with how far it was replayed, so whatever was not
+  replayed survives a restart.
+  Records are binary: [length][timestamp][device id][service][attribute count]([label][tag][value])*
+  At most maxSegments segments are kept, the oldest is dropped to make room, and records older than
+  maxAge are skipped when read.
+ */
+public class TelemetrySpool {
+    private Logger mLogger = Logger.getLogger(TelemetrySpool.class);
+
+    // read offset
+    private static final int HEADER = 4;
+    private static final String SUFFIX = ".seg";
+
+    private static final byte NULL = 0;
+    private static final byte TRUE = 1;
+    private static final byte FALSE = 2;
+    private static final byte LONG = 3;
+    private static final byte DOUBLE = 4;
+    private static final byte STRING = 5;
+    private static final byte JSON = 6;
+
+    private final File dir;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final long maxAge;
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+    private long nextId;
+    private long pending;
+    private ByteBuffer scratch = ByteBuffer.allocate(4096);
+
+    private static final AgentMetrics.Counter written =
+            AgentMetrics.counter("spool_records_written_total", "Attribute updates written to the disk spool");
+    private static final AgentMetrics.Counter dropped = AgentMetrics.counter("spool_records_dropped_total",
+            "Spooled attribute updates discarded to stay within the spool size");
+    private static final AgentMetrics.Counter expired = AgentMetrics.counter("spool_records_expired_total",
+            "Spooled attribute updates skipped because they were older than the spool max age");
+
+    public static class Record {
+        public final long timestamp;
+        public final String deviceId;
+        public final String service;
+        public final JSONObject attrs;
+        // Where the record was read from, commit only advances past this very record
+        long segmentId;
+        int position;
+
+        Record(long timestamp, String deviceId, String service, JSONObject attrs) {
+            this.timestamp = timestamp;
+            this.deviceId = deviceId;
+            this.service = service;
+            this.attrs = attrs;
+        }
+    }
+
+    private static class Segment {
+        final long id;
+        final File file;
+        final MappedByteBuffer buffer;
+        int readPos;
+        int writePos;
+        long records;
+
+        Segment(long id, File file, MappedByteBuffer buffer) {
+            this.id = id;
+            this.file = file;
+            this.buffer = buffer;
+        }
+    }
+
+    /**
+     * Opens the spool in dir, resuming the segments left by a previous run. maxAge is in milliseconds
+     */
+    public TelemetrySpool(File dir, int segmentSize, int maxSegments, long maxAge) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create spool directory " + dir);
+        }
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.maxSegments = Math.max(2, maxSegments);
+        this.maxAge = maxAge;
+
+        File[] files = dir.listFiles((d, name) -> name.endsWith(SUFFIX));
+        long[] ids = new long[files == null ? 0 : files.length];
+        for (int i = 0; i < ids.length; i++) {
+            String name = files[i].getName();
+            ids[i] = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+        }
+        Arrays.sort(ids);
+        for (long id : ids) {
+            Segment segment = recover(id);
+            if (segment.records > 0) {
+                segments.add(segment);
+                pending += segment.records;
+            } else {
+                delete(segment);
+            }
+            nextId = id + 1;
+        }
+        if (pending > 0) {
+            mLogger.info(String.format("Spool resumed with %d records in %d segments", pending, segments.size()));
+        }
+        AgentMetrics.gauge("spool_records_pending", "Spooled attribute updates not replayed yet",
+                this::getPending);
+    }
+
+    public synchronized void append(String deviceId, String service, JSONObject attrs) {
+        ByteBuffer record = encode(System.currentTimeMillis(), deviceId, service, attrs);
+        int length = record.remaining();
+        if (4 + length > segmentSize - HEADER) {
+            mLogger.warn("Attribute update of " + deviceId + " too large for the spool");
+            dropped.inc();
+            return;
+        }
+
+        // A segment recovered from a previous run has the size it was created with
+        Segment tail = segments.peekLast();
+        if (tail == null || tail.writePos + 4 + length > tail.buffer.capacity()) {
+            tail = roll();
+            if (tail == null) {
+                dropped.inc();
+                return;
+            }
+        }
+        // Body first, a crash before the length is written leaves the record out
+        tail.buffer.position(tail.writePos + 4);
+        tail.buffer.put(record);
+        tail.buffer.putInt(tail.writePos, length);
+        tail.writePos += 4 + length;
+        tail.records++;
+        pending++;
+        written.inc();
+    }
+
+    /**
+     * The oldest record not replayed yet, or null. It stays in the spool until commit is called
+     */
+    public synchronized Record peek() {
+        while (true) {
+            Segment head = segments.peekFirst();
+            if (head != null && head.readPos >= head.writePos && segments.size() > 1) {
+                segments.removeFirst();
+                delete(head);
+                continue;
+            }
+            if (head == null || head.readPos >= head.writePos) {
+                return null;
+            }
+            int length = head.buffer.getInt(head.readPos);
+            ByteBuffer body = head.buffer.duplicate();
+            body.position(head.readPos + 4);
+            body.limit(head.readPos + 4 + length);
+            Record record = decode(body);
+            if (maxAge <= 0 || System.currentTimeMillis() - record.timestamp <= maxAge) {
+                record.segmentId = head.id;
+                record.position = head.readPos;
+                return record;
+            }
+            expired.inc();
+            advance();
+        }
+    }
+
+    /**
+     * Removes a record returned by peek. Does nothing if the record is no longer at the head, e.g. its
+     * segment was dropped to make room while it was being replayed
+     */
+    public synchronized void commit(Record record) {
+        Segment head = segments.peekFirst();
+        if (head != null && head.id == record.segmentId && head.readPos == record.position
+                && head.readPos < head.writePos) {
+            advance();
+        }
+    }
+
+    public synchronized boolean isEmpty() {
+        return pending == 0;
+    }
+
+    public synchronized long getPending() {
+        return pending;
+    }
+
+    /**
+     * Writes the mapped segments back to disk
+     */
+    public synchronized void flush() {
+        for (Segment segment : segments) {
+            segment.buffer.force();
+        }
+    }
+
+    private void advance() {
+        Segment head = segments.peekFirst();
+        head.readPos += 4 + head.buffer.getInt(head.readPos);
+        head.buffer.putInt(0, head.readPos);
+        head.records--;
+        pending--;
+        if (head.readPos >= head.writePos && segments.size() > 1) {
+            segments.removeFirst();
+            delete(head);
+        }
+    }
+
+    private Segment roll() {
+        if (segments.size() >= maxSegments) {
+            Segment oldest = segments.removeFirst();
+            dropped.add(oldest.records);
+            pending -= oldest.records;
+            delete(oldest);
+            mLogger.warn(String.format("Spool full, dropped %d records", oldest.records));
+        }
+        long id = nextId++;
+        File file = new File(dir, String.format("%016d%s", id, SUFFIX));
+        try {
+            Segment segment = new Segment(id, file, map(file, segmentSize));
+            segment.buffer.putInt(0, HEADER);
+            segment.readPos = HEADER;
+            segment.writePos = HEADER;
+            segments.addLast(segment);
+            return segment;
+        } catch (IOException e) {
+            mLogger.error("Unable to create spool segment " + file, e);
+            return null;
+        }
+    }
+
+    private Segment recover(long id) throws IOException {
+        File file = new File(dir, String.format("%016d%s", id, SUFFIX));
+        Segment segment = new Segment(id, file, map(file, (int) Math.max(file.length(), HEADER)));
+        MappedByteBuffer buffer = segment.buffer;
+        int readPos = buffer.getInt(0);
+        segment.readPos = readPos < HEADER ? HEADER : readPos;
+
+        // The tail ends at the first record that is empty or does not fit
+        int pos = HEADER;
+        while (pos + 4 <= buffer.capacity()) {
+            int length = buffer.getInt(pos);
+            if (length <= 0 || pos + 4 + length > buffer.capacity()) {
+                break;
+            }
+            if (pos >= segment.readPos) {
+                segment.records++;
+            }
+            pos += 4 + length;
+        }
+        segment.writePos = pos;
+        return segment;
+    }
+
+    private static MappedByteBuffer map(File file, int size) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            // The mapping stays valid once the channel is closed
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    private void delete(Segment segment) {
+        if (!segment.file.delete()) {
+            mLogger.warn("Unable to delete spool segment " + segment.file);
+        }
+    }
+
+    private ByteBuffer encode(long timestamp, String deviceId, String service, JSONObject attrs) {
+        while (true) {
+            try {
+                scratch.clear();
+                scratch.putLong(timestamp);
+                putString(scratch, deviceId);
+                putString(scratch, service);
+                scratch.putShort((short) attrs.length());
+                Iterator<String> labels = attrs.keys();
+                while (labels.hasNext()) {
+                    String label = labels.next();
+                    putString(scratch, label);
+                    putValue(scratch, attrs.get(label));
+                }
+                scratch.flip();
+                return scratch;
+            } catch (BufferOverflowException e) {
+                scratch = ByteBuffer.allocate(scratch.capacity() * 2);
+            }
+        }
+    }
+
+    private static void putValue(ByteBuffer buffer, Object value) {
+        if (value == null || value == JSONObject.NULL) {
+            buffer.put(NULL);
+        } else if (value instanceof Boolean) {
+            buffer.put((Boolean) value ? TRUE : FALSE);
+        } else if (value instanceof Integer || value instanceof Long || value instanceof Short) {
+            buffer.put(LONG).putLong(((Number) value).longValue());
+        } else if (value instanceof Number) {
+            buffer.put(DOUBLE).putDouble(((Number) value).doubleValue());
+        } else if (value instanceof JSONObject || value instanceof JSONArray) {
+            buffer.put(JSON);
+            putString(buffer, value.toString());
+        } else {
+            buffer.put(STRING);
+            putString(buffer, value.toString());
+        }
+    }
+
+    private static Object getValue(ByteBuffer buffer) {
+        byte tag = buffer.get();
+        switch (tag) {
+            case TRUE:
+                return Boolean.TRUE;
+            case FALSE:
+                return Boolean.FALSE;
+            case LONG:
+                return buffer.getLong();
+            case DOUBLE:
+                return buffer.getDouble();
+            case STRING:
+                return getString(buffer);
+            case JSON: {
+                String json = getString(buffer);
+                return json.startsWith("[") ? new JSONArray(json) : new JSONObject(json);
+            }
+            default:
+                return JSONObject.NULL;
+        }
+    }
+
+    private static Record decode(ByteBuffer buffer) {
+        long timestamp = buffer.getLong();
+        String deviceId = getString(buffer);
+        String service = getString(buffer);
+        int count = buffer.getShort() & 0xffff;
+        JSONObject attrs = new JSONObject();
+        for (int i = 0; i < count; i++) {
+            String label = getString(buffer);
+            attrs.put(label, getValue(buffer));
+        }
+        return new Record(timestamp, deviceId, service, attrs);
+    }
+
+    private static void putString(ByteBuffer buffer, String value) {
+        byte[] bytes = value == null ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+        buffer.putInt(bytes.length).put(bytes);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,90 @@
+package org.cpqd.iotagent;
+
+import org.json.JSONArray;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+  Keeps the attribute tables of each template, shared by every device built from them.
+  Devices only keep references to these tables plus the static values they override.
+  A template has one table per shape it was seen with (devices fetched before and after a template
+  update may disagree), the tables are weakly held so shapes no device uses anymore go away.
+ */
+public class TemplateRegistry {
+    private static final Map<String, List<WeakReference<AttributeTable>>> templates = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the shared table of the template with the same shape as the given attributes, static values
+     * that differ from that table are stored into overrides.
+     * Attributes of a shape not seen yet become a new table of the template, existing devices keep theirs.
+     */
+    public static AttributeTable intern(String templateId, JSONArray attrs, Map<String, String> overrides) {
+        DeviceAttribute[] attributes = new DeviceAttribute[attrs.length()];
+        for (int i = 0; i < attributes.length; i++) {
+            attributes[i] = new DeviceAttribute(attrs.getJSONObject(i));
+        }
+
+        synchronized (templates) {
+            List<WeakReference<AttributeTable>> shapes = templates.computeIfAbsent(templateId, id -> new ArrayList<>());
+            Iterator<WeakReference<AttributeTable>> it = shapes.iterator();
+            while (it.hasNext()) {
+                AttributeTable current = it.next().get();
+                if (current == null) {
+                    it.remove();
+                    continue;
+                }
+                if (current.hasSameShape(attributes)) {
+                    for (DeviceAttribute attr : attributes) {
+                        String templateValue = current.get(attr.label).staticValue;
+                        if (!Objects.equals(attr.staticValue, templateValue)) {
+                            overrides.put(attr.label, attr.staticValue);
+                        }
+                    }
+                    return current;
+                }
+            }
+
+            AttributeTable table = AttributeTable.of(attributes);
+            shapes.add(new WeakReference<>(table));
+            return table;
+        }
+    }
+
+    /**
+     * Template was updated on device-manager, new devices will share the new table and the shapes of
+     * the previous versions are no longer offered
+     */
+    public static void replace(String templateId, AttributeTable table) {
+        List<WeakReference<AttributeTable>> shapes = new ArrayList<>();
+        shapes.add(new WeakReference<>(table));
+        synchronized (templates) {
+            templates.put(templateId, shapes);
+        }
+    }
+
+    /**
+     * The latest table of the template, null if it is unknown or no device uses it anymore
+     */
+    public static AttributeTable get(String templateId) {
+        synchronized (templates) {
+            List<WeakReference<AttributeTable>> shapes = templates.get(templateId);
+            for (int i = shapes == null ? -1 : shapes.size() - 1; i >= 0; i--) {
+                AttributeTable table = shapes.get(i).get();
+                if (table != null) {
+                    return table;
+                }
+            }
+            return null;
+        }
+    }
+
+    public static int size() {
+        return templates.size();
+    }
+}
@@ -0,0 +1,127 @@
+package org.cpqd.iotagent;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/*
+  Lightweight sampled tracing of the notification and actuation paths.
+  A sampled trace records the offset of each stage from its start (System.nanoTime), finished traces go to
+  a fixed size ring buffer that can be dumped through the admin endpoint.
+  Unsampled operations get a shared no-op trace, so the hot path only pays a counter increment.
+ */
+public class Tracer {
+    private static final int MAX_STAGES = 12;
+
+    private static volatile int sampleRate = 100;
+    private static final AtomicLong sequence = new AtomicLong();
+    private static final AtomicReferenceArray<Trace> buffer = new AtomicReferenceArray<>(1024);
+    private static final AtomicLong written = new AtomicLong();
+    private static final ThreadLocal<Trace> current = new ThreadLocal<>();
+
+    public static class Trace {
+        static final Trace NOOP = new Trace(null, null);
+
+        final String operation;
+        final String subject;
+        final long wallClock;
+        final long start;
+        final String[] stages = new String[MAX_STAGES];
+        final long[] offsets = new long[MAX_STAGES];
+        int count;
+
+        Trace(String operation, String subject) {
+            this.operation = operation;
+            this.subject = subject;
+            this.wallClock = System.currentTimeMillis();
+            this.start = System.nanoTime();
+        }
+
+        /**
+         * Marks the end of a stage
+         */
+        public void mark(String stage) {
+            if (this == NOOP || count == MAX_STAGES) {
+                return;
+            }
+            stages[count] = stage;
+            offsets[count] = System.nanoTime() - start;
+            count++;
+        }
+
+        public void finish() {
+            if (this == NOOP) {
+                return;
+            }
+            long i = written.getAndIncrement();
+            buffer.set((int) (i % buffer.length()), this);
+        }
+
+        JSONObject toJson() {
+            JSONArray spans = new JSONArray();
+            long previous = 0;
+            for (int i = 0; i < count; i++) {
+                spans.put(new JSONObject()
+                        .put("stage", stages[i])
+                        .put("duration_us", (offsets[i] - previous) / 1000)
+                        .put("offset_us", offsets[i] / 1000));
+                previous = offsets[i];
+            }
+            return new JSONObject()
+                    .put("operation", operation)
+                    .put("subject", subject)
+                    .put("timestamp", wallClock)
+                    .put("total_us", previous / 1000)
+                    .put("stages", spans);
+        }
+    }
+
+    /**
+     * Samples one of every rate operations, 0 disables tracing
+     */
+    public static void setSampleRate(int rate) {
+        sampleRate = rate;
+    }
+
+    public static Trace start(String operation, String subject) {
+        int rate = sampleRate;
+        if (rate <= 0 || sequence.getAndIncrement() % rate != 0) {
+            return Trace.NOOP;
+        }
+        return new Trace(operation, subject);
+    }
+
+    /**
+     * Trace of the operation being handled by the current thread, never null
+     */
+    public static Trace current() {
+        Trace trace = current.get();
+        return trace == null ? Trace.NOOP : trace;
+    }
+
+    static void setCurrent(Trace trace) {
+        if (trace == Trace.NOOP) {
+            current.remove();
+        } else {
+            current.set(trace);
+        }
+    }
+
+    /**
+     * Finished traces, oldest first
+     */
+    public static String dump() {
+        JSONArray traces = new JSONArray();
+        long end = written.get();
+        long begin = Math.max(0, end - buffer.length());
+        for (long i = begin; i < end; i++) {
+            Trace trace = buffer.get((int) (i % buffer.length()));
+            if (trace != null) {
+                traces.put(trace.toJson());
+            }
+        }
+        return traces.toString();
+    }
+}
@@ -0,0 +1,91 @@
+package org.cpqd.iotagent;
+
+import org.eclipse.leshan.core.model.ResourceModel;
+import org.eclipse.leshan.core.node.LwM2mNode;
+import org.eclipse.leshan.core.node.LwM2mResource;
+import org.eclipse.leshan.util.Hex;
+import org.json.JSONObject;
+
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Date;
+import java.util.Map;
+
+/*
+  Conversions between dojot attribute values (JSON) and the java types Leshan uses for each LwM2M type:
+  INTEGER as Long, FLOAT as Double, BOOLEAN, STRING, TIME as Date and OPAQUE as byte[] (hex in JSON).
+  The type comes from the resource model resolved at template registration, never from the value itself.
+ */
+public class ValueCodec {
+    // Same date representation the agent always published (it used to serialize nodes with gson)
+    private static final DateTimeFormatter dateFormat =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ssXXX").withZone(ZoneId.systemDefault());
+
+    private ValueCodec() {
+    }
+
+    /**
+     * Value received from dojot (JSON number, boolean or string) as expected by Leshan for the type
+     */
+    public static Object fromJson(ResourceModel.Type type, Object value) {
+        switch (type) {
+            case INTEGER:
+                return value instanceof Number ? ((Number) value).longValue() : Long.parseLong(value.toString());
+            case FLOAT:
+                return value instanceof Number ? ((Number) value).doubleValue() : Double.parseDouble(value.toString());
+            case BOOLEAN:
+                return value instanceof Boolean ? (Boolean) value : Boolean.valueOf(value.toString());
+            case TIME:
+                long seconds = value instanceof Number ? ((Number) value).longValue() : Long.parseLong(value.toString());
+                return new Date(seconds * 1000);
+            case OPAQUE:
+                return Hex.decodeHex(value.toString().toCharArray());
+            default:
+                return value.toString();
+        }
+    }
+
+    /**
+     * Value read from a device as published to dojot
+     */
+    public static Object toJson(ResourceModel.Type type, Object value) {
+        if (value == null) {
+            return JSONObject.NULL;
+        }
+        switch (type) {
+            case TIME:
+                return dateFormat.format(((Date) value).toInstant());
+            case OPAQUE:
+                return new String(Hex.encodeHex((byte[]) value));
+            default:
+                return value;
+        }
+    }
+
+    /**
+     * Value of a resource, or an object of instance id to value for multiple resources
+     * Returns null for anything that is not a resource
+     */
+    public static Object toJson(LwM2mNode node) {
+        if (!(node instanceof LwM2mResource)) {
+            return null;
+        }
+        LwM2mResource resource = (LwM2mResource) node;
+        if (!resource.isMultiInstances()) {
+            return toJson(resource.getType(), resource.getValue());
+        }
+        JSONObject values = new JSONObject();
+        for (Map.Entry<Integer, ?> entry : resource.getValues().entrySet()) {
+            values.put(entry.getKey().toString(), toJson(resource.getType(), entry.getValue()));
+        }
+        return values;
+    }
+
+    /**
+     * Plain text of a single resource value, as compared against static attributes (e.g. firmware version)
+     */
+    public static String toText(LwM2mNode node) {
+        Object value = toJson(node);
+        return value == null ? "" : value.toString();
+    }
+}
@@ -0,0 +1,233 @@
+package org.cpqd.iotagent;
+
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/*
+  Downsamples attributes with an aggregation policy (see AggregationPolicy).
+  Their numeric values are taken out of the notification payload and folded into a tumbling window per
+  device and attribute, aligned on multiples of the window length. One summary is published when the
+  window closes, by the next value of the attribute or by the periodic flush, whichever comes first.
+  Wildcard and non numeric values are published as they come.
+ */
+public class WindowAggregator {
+    private static final long FLUSH_INTERVAL = 1000;
+
+    private final AttributePublisher publisher;
+    // Open windows by device id and label
+    private final Map<String, Map<String, Window>> windows = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService flusher;
+
+    private static final AgentMetrics.Counter aggregated = AgentMetrics.counter("aggregation_values_total",
+            "Attribute values folded into a window instead of being published");
+    private static final AgentMetrics.Counter summaries = AgentMetrics.counter("aggregation_summaries_total",
+            "Window summaries published");
+
+    private static class Window {
+        final AggregationPolicy policy;
+        final boolean integral;
+        final String service;
+        long end;
+        long count;
+        double min;
+        double max;
+        double sum;
+        double last;
+
+        Window(AggregationPolicy policy, boolean integral, String service) {
+            this.policy = policy;
+            this.integral = integral;
+            this.service = service;
+        }
+
+        void add(double value, long now) {
+            if (count == 0) {
+                end = (now / policy.window + 1) * policy.window;
+                min = value;
+                max = value;
+                sum = 0;
+            }
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+            sum += value;
+            last = value;
+            count++;
+        }
+
+        boolean isClosed(long now) {
+            return count > 0 && now >= end;
+        }
+
+        /**
+         * The summary of the values so far, a single value when the policy has a single function
+         */
+        Object close() {
+            Object summary;
+            if (policy.hasSingleFunction()) {
+                summary = value(policy.functions);
+            } else {
+                JSONObject functions = new JSONObject();
+                if ((policy.functions & AggregationPolicy.MIN) != 0) {
+                    functions.put("min", value(AggregationPolicy.MIN));
+                }
+                if ((policy.functions & AggregationPolicy.MAX) != 0) {
+                    functions.put("max", value(AggregationPolicy.MAX));
+                }
+                if ((policy.functions & AggregationPolicy.AVG) != 0) {
+                    functions.put("avg", value(AggregationPolicy.AVG));
+                }
+                if ((policy.functions & AggregationPolicy.LAST) != 0) {
+                    functions.put("last", value(AggregationPolicy.LAST));
+                }
+                if ((policy.functions & AggregationPolicy.COUNT) != 0) {
+                    functions.put("count", value(AggregationPolicy.COUNT));
+                }
+                summary = functions;
+            }
+            count = 0;
+            return summary;
+        }
+
+        private Object value(int function) {
+            switch (function) {
+                case AggregationPolicy.MIN:
+                    return integral ? (Object) (long) min : (Object) min;
+                case AggregationPolicy.MAX:
+                    return integral ? (Object) (long) max : (Object) max;
+                case AggregationPolicy.LAST:
+                    return integral ? (Object) (long) last : (Object) last;
+                case AggregationPolicy.COUNT:
+                    return count;
+                default:
+                    return sum / count;
+            }
+        }
+    }
+
+    public WindowAggregator(AttributePublisher publisher) {
+        this.publisher = publisher;
+        ThreadFactory threads = Workers.threadFactory("aggregation");
+        this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = threads.newThread(r);
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(this::flush, FLUSH_INTERVAL, FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+        AgentMetrics.gauge("aggregation_windows", "Open aggregation windows", this::getWindowCount);
+    }
+
+    /**
+     * Takes the values of aggregated attributes out of the payload, and publishes the windows they close.
+     * Returns the payload with what must be published as is
+     */
+    public JSONObject offer(String deviceId, String service, Device device, JSONObject payload) {
+        if (device == null) {
+            return payload;
+        }
+        long now = System.currentTimeMillis();
+        List<String> folded = null;
+        JSONObject closed = null;
+        for (String label : payload.keySet()) {
+            DeviceAttribute attr = device.getAttribute(label);
+            Object value = payload.get(label);
+            if (attr == null || attr.aggregation == null || attr.isWildcard() || !(value instanceof Number)) {
+                continue;
+            }
+            Map<String, Window> deviceWindows = windows.computeIfAbsent(deviceId, id -> new ConcurrentHashMap<>());
+            Window window = deviceWindows.get(label);
+            // Policies are compared by value, a device fetched again comes with new but equal policies
+            if (window == null || !Objects.equals(window.policy, attr.aggregation)) {
+                Window previous = window;
+                window = new Window(attr.aggregation, attr.valueType == DeviceAttribute.ValueType.INTEGER, service);
+                deviceWindows.put(label, window);
+                // The policy changed with the template, what was collected so far is published
+                if (previous != null) {
+                    synchronized (previous) {
+                        if (previous.count > 0) {
+                            closed = put(closed, label, previous.close());
+                        }
+                    }
+                }
+            }
+            synchronized (window) {
+                if (window.isClosed(now)) {
+                    closed = put(closed, label, window.close());
+                }
+                window.add(((Number) value).doubleValue(), now);
+            }
+            aggregated.inc();
+            if (folded == null) {
+                folded = new ArrayList<>();
+            }
+            folded.add(label);
+        }
+
+        if (folded != null) {
+            for (String label : folded) {
+                payload.remove(label);
+            }
+        }
+        if (closed != null) {
+            summaries.add(closed.length());
+            publisher.publish(deviceId, service, closed);
+        }
+        return payload;
+    }
+
+    /**
+     * Publishes the windows of a device that left, even if they are not over
+     */
+    public void close(String deviceId) {
+        Map<String, Window> deviceWindows = windows.remove(deviceId);
+        if (deviceWindows != null) {
+            publishClosed(deviceId, deviceWindows, Long.MAX_VALUE);
+        }
+    }
+
+    public int getWindowCount() {
+        int count = 0;
+        for (Map<String, Window> deviceWindows : windows.values()) {
+            count += deviceWindows.size();
+        }
+        return count;
+    }
+
+    // Windows of attributes that stopped notifying are closed here
+    private void flush() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Map<String, Window>> entry : windows.entrySet()) {
+            publishClosed(entry.getKey(), entry.getValue(), now);
+        }
+    }
+
+    private void publishClosed(String deviceId, Map<String, Window> deviceWindows, long now) {
+        JSONObject closed = null;
+        String service = null;
+        for (Map.Entry<String, Window> entry : deviceWindows.entrySet()) {
+            Window window = entry.getValue();
+            synchronized (window) {
+                if (window.isClosed(now)) {
+                    closed = put(closed, entry.getKey(), window.close());
+                    service = window.service;
+                }
+            }
+        }
+        if (closed != null) {
+            summaries.add(closed.length());
+            publisher.publish(deviceId, service, closed);
+        }
+    }
+
+    private static JSONObject put(JSONObject closed, String label, Object summary) {
+        return (closed == null ? new JSONObject() : closed).put(label, summary);
+    }
+}
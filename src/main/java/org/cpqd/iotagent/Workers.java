@@ -0,0 +1,79 @@
+package org.cpqd.iotagent;
+
+import org.apache.log4j.Logger;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+  Threads for the blocking workflows (registration, actuation, firmware update).
+  On JDK 21+ with virtual threads enabled they run on virtual threads, found by reflection so the
+  agent still builds and runs on Java 8, otherwise on platform threads. Concurrency towards each
+  backend is bounded by BackendLimit either way.
+ */
+public class Workers {
+    private static Logger mLogger = Logger.getLogger(Workers.class);
+
+    private static volatile boolean virtualThreads;
+
+    private Workers() {
+    }
+
+    /**
+     * Switches to virtual threads if the running JDK has them, returns whether they are in use
+     */
+    public static boolean useVirtualThreads(boolean enabled) {
+        virtualThreads = enabled && virtualThreadFactory("probe") != null;
+        if (enabled && !virtualThreads) {
+            mLogger.warn("Virtual threads are not available on java " + System.getProperty("java.version"));
+        }
+        return virtualThreads;
+    }
+
+    public static boolean isVirtual() {
+        return virtualThreads;
+    }
+
+    /**
+     * Factory of threads named name-N
+     */
+    public static ThreadFactory threadFactory(String name) {
+        if (virtualThreads) {
+            ThreadFactory factory = virtualThreadFactory(name);
+            if (factory != null) {
+                return factory;
+            }
+        }
+        AtomicInteger count = new AtomicInteger();
+        return r -> new Thread(r, name + "-" + count.getAndIncrement());
+    }
+
+    /**
+     * A thread per task when virtual, a fixed pool of platformThreads otherwise
+     */
+    public static ExecutorService perTaskExecutor(String name, int platformThreads) {
+        if (virtualThreads) {
+            try {
+                return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                        .invoke(null, threadFactory(name));
+            } catch (ReflectiveOperationException e) {
+                mLogger.warn("Unable to create a virtual thread executor", e);
+            }
+        }
+        return Executors.newFixedThreadPool(platformThreads, threadFactory(name));
+    }
+
+    // Thread.ofVirtual().name(name + "-", 0).factory()
+    private static ThreadFactory virtualThreadFactory(String name) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name + "-", 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package org.cpqd.iotagent;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CommandQueueTest {
+    private final List<String> sent = new ArrayList<>();
+
+    private boolean offer(CommandQueue queue, String endpoint, String key, String command) {
+        return queue.offer(endpoint, key, registration -> sent.add(command));
+    }
+
+    @Test
+    public void flushesInOrder() {
+        CommandQueue queue = new CommandQueue(32, 1000, 60000);
+        offer(queue, "dev", "/3/0/1", "a");
+        offer(queue, "dev", "/3/0/2", "b");
+        offer(queue, "dev", "/3/0/3", "c");
+        assertEquals(3, queue.getPending("dev"));
+
+        queue.flush("dev", null);
+        assertEquals(Arrays.asList("a", "b", "c"), sent);
+        assertEquals(0, queue.getPending("dev"));
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void lastValueWinsAndMovesToTheEnd() {
+        CommandQueue queue = new CommandQueue(32, 1000, 60000);
+        offer(queue, "dev", "/3/0/1", "a1");
+        offer(queue, "dev", "/3/0/2", "b");
+        offer(queue, "dev", "/3/0/1", "a2");
+        assertEquals(2, queue.size());
+
+        queue.flush("dev", null);
+        assertEquals(Arrays.asList("b", "a2"), sent);
+    }
+
+    @Test
+    public void devicesAreFlushedSeparately() {
+        CommandQueue queue = new CommandQueue(32, 1000, 60000);
+        offer(queue, "dev1", "/3/0/1", "a");
+        offer(queue, "dev2", "/3/0/1", "b");
+
+        queue.flush("dev2", null);
+        assertEquals(Arrays.asList("b"), sent);
+        assertEquals(1, queue.getPending("dev1"));
+        assertEquals(1, queue.size());
+    }
+
+    @Test
+    public void fullDeviceQueueDropsItsOldestCommand() {
+        CommandQueue queue = new CommandQueue(2, 1000, 60000);
+        offer(queue, "dev", "/3/0/1", "a");
+        offer(queue, "dev", "/3/0/2", "b");
+        assertTrue(offer(queue, "dev", "/3/0/3", "c"));
+        assertEquals(2, queue.size());
+
+        queue.flush("dev", null);
+        assertEquals(Arrays.asList("b", "c"), sent);
+    }
+
+    @Test
+    public void fullQueueRefusesNewCommands() {
+        CommandQueue queue = new CommandQueue(32, 2, 60000);
+        assertTrue(offer(queue, "dev1", "/3/0/1", "a"));
+        assertTrue(offer(queue, "dev2", "/3/0/1", "b"));
+        assertFalse(offer(queue, "dev3", "/3/0/1", "c"));
+        // Replacing a pending command does not take more room
+        assertTrue(offer(queue, "dev1", "/3/0/1", "a2"));
+        assertEquals(2, queue.size());
+    }
+
+    @Test
+    public void expiredCommandsAreNotSent() throws Exception {
+        CommandQueue queue = new CommandQueue(32, 1000, 10);
+        offer(queue, "dev", "/3/0/1", "a");
+        Thread.sleep(30);
+        offer(queue, "dev", "/3/0/2", "b");
+
+        queue.flush("dev", null);
+        assertEquals(Arrays.asList("b"), sent);
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void sweepDropsQueuesOfDevicesThatNeverCameBack() throws Exception {
+        CommandQueue queue = new CommandQueue(32, 1000, 10);
+        offer(queue, "gone", "/3/0/1", "a");
+        offer(queue, "gone", "/3/0/2", "b");
+        Thread.sleep(30);
+        offer(queue, "dev", "/3/0/1", "c");
+
+        queue.sweep();
+        assertEquals(1, queue.getDeviceCount());
+        assertEquals(0, queue.getPending("gone"));
+        assertEquals(1, queue.size());
+
+        queue.flush("dev", null);
+        assertEquals(Arrays.asList("c"), sent);
+    }
+
+    @Test
+    public void flushingAnUnknownDeviceDoesNothing() {
+        CommandQueue queue = new CommandQueue(32, 1000, 60000);
+        queue.flush("dev", null);
+        assertTrue(sent.isEmpty());
+    }
+}
@@ -0,0 +1,68 @@
+package org.cpqd.iotagent;
+
+import org.eclipse.leshan.core.model.ResourceModel;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+public class DeviceAttributeTest {
+
+    private static JSONObject attribute(String label, String type, String valueType) {
+        return new JSONObject().put("label", label).put("type", type).put("value_type", valueType);
+    }
+
+    private static JSONObject lwm2m(JSONObject attr, String path) {
+        return attr.put("metadata", new JSONArray()
+                .put(new JSONObject().put("label", "path").put("type", "lwm2m").put("static_value", path)));
+    }
+
+    @Test
+    public void mapsKnownTypesToLwm2m() {
+        DeviceAttribute attr = new DeviceAttribute(lwm2m(attribute("light", "actuator", "bool"), "/3311/0/5850"));
+        ResourceModel model = attr.getLwm2mResourceModel();
+        assertEquals(5850, model.id);
+        assertEquals(ResourceModel.Type.BOOLEAN, model.type);
+    }
+
+    @Test
+    public void acceptsUnknownTypesOutsideLwm2m() {
+        DeviceAttribute location = new DeviceAttribute(attribute("location", "dynamic", "geo:point"));
+        assertEquals(DeviceAttribute.ValueType.UNKNOWN, location.valueType);
+        assertFalse(location.isLwm2mAttr());
+        assertNull(location.getLwm2mResourceModel());
+
+        DeviceAttribute config = new DeviceAttribute(attribute("config", "config", "object"));
+        assertEquals(DeviceAttribute.Type.UNKNOWN, config.type);
+        assertNull(config.staticValue);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownTypesMappedToLwm2m() {
+        new DeviceAttribute(lwm2m(attribute("location", "dynamic", "geo:point"), "/6/0/0")).getLwm2mResourceModel();
+    }
+
+    private static JSONObject aggregated(String functions, String window) {
+        return attribute("temperature", "dynamic", "float").put("metadata", new JSONArray()
+                .put(new JSONObject().put("label", "aggregation").put("type", "meta").put("static_value", functions))
+                .put(new JSONObject().put("label", "aggregation_window").put("type", "meta")
+                        .put("static_value", window)));
+    }
+
+    @Test
+    public void readsTheAggregationPolicy() {
+        AggregationPolicy policy = new DeviceAttribute(aggregated("min, max", "30")).aggregation;
+        assertEquals(AggregationPolicy.MIN | AggregationPolicy.MAX, policy.functions);
+        assertEquals(30000, policy.window);
+    }
+
+    @Test
+    public void publishesAsIsWithAnInvalidAggregation() {
+        assertNull(new DeviceAttribute(aggregated("median", "30")).aggregation);
+        assertNull(new DeviceAttribute(aggregated("avg", "1 minute")).aggregation);
+        assertNull(new DeviceAttribute(aggregated("avg", "-5")).aggregation);
+    }
+}
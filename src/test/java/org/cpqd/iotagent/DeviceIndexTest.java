@@ -0,0 +1,59 @@
+package org.cpqd.iotagent;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class DeviceIndexTest {
+
+    private static Device device(String id, String serialNumber) {
+        JSONArray attrs = new JSONArray()
+                .put(new JSONObject().put("label", "device_type").put("type", "static").put("value_type", "string")
+                        .put("template_id", "7").put("static_value", "lamp"))
+                .put(new JSONObject().put("label", "serial_number").put("type", "static").put("value_type", "string")
+                        .put("template_id", "7").put("static_value", serialNumber));
+        return new Device(new JSONObject().put("label", "lamp").put("id", id)
+                .put("attrs", new JSONObject().put("7", attrs)));
+    }
+
+    @After
+    public void tearDown() {
+        DeviceIndex.setTtl(600000);
+    }
+
+    @Test
+    public void findsDevicesByTypeAndSerialNumber() {
+        DeviceIndex index = new DeviceIndex();
+        Device device = device("a1", "S1");
+        index.put("admin", device);
+        assertSame(device, index.get("admin", "lamp", "S1", 0));
+        assertNull(index.get("other", "lamp", "S1", 0));
+    }
+
+    @Test
+    public void forgetsRemovedAndChangedDevices() {
+        DeviceIndex index = new DeviceIndex();
+        index.put("admin", device("a1", "S1"));
+        index.put("admin", device("a2", "S2"));
+        index.remove("a1");
+        assertNull(index.get("admin", "lamp", "S1", 0));
+
+        Device changed = device("a2", "S3");
+        index.put("admin", changed);
+        assertNull(index.get("admin", "lamp", "S2", 0));
+        assertSame(changed, index.get("admin", "lamp", "S3", 0));
+    }
+
+    @Test
+    public void entriesExpire() throws Exception {
+        DeviceIndex.setTtl(50);
+        DeviceIndex index = new DeviceIndex();
+        index.put("admin", device("a1", "S1"));
+        Thread.sleep(100);
+        assertNull(index.get("admin", "lamp", "S1", 0));
+    }
+}
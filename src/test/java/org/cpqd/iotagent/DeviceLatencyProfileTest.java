@@ -0,0 +1,90 @@
+package org.cpqd.iotagent;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DeviceLatencyProfileTest {
+
+    @Test
+    public void startsWithTheInitialTimeout() {
+        DeviceLatencyProfile profile = new DeviceLatencyProfile(false);
+        assertEquals(DeviceLatencyProfile.INITIAL_TIMEOUT, profile.getTimeout());
+        assertEquals(2, profile.getRetryBudget());
+    }
+
+    @Test
+    public void firstSampleSetsSmoothedRttAndVariation() {
+        DeviceLatencyProfile profile = new DeviceLatencyProfile(false);
+        profile.onResponse(1000);
+        // SRTT = R, RTTVAR = R/2, RTO = SRTT + 4 * RTTVAR
+        assertEquals(1000, profile.getSmoothedRtt());
+        assertEquals(3000, profile.getTimeout());
+    }
+
+    @Test
+    public void laterSamplesAreSmoothed() {
+        DeviceLatencyProfile profile = new DeviceLatencyProfile(false);
+        profile.onResponse(1000);
+        profile.onResponse(2000);
+        // RTTVAR = 3/4 * 500 + 1/4 * |1000 - 2000| = 625, SRTT = 7/8 * 1000 + 1/8 * 2000 = 1125
+        assertEquals(1125, profile.getSmoothedRtt());
+        assertEquals(1125 + 4 * 625, profile.getTimeout());
+    }
+
+    @Test
+    public void timeoutIsClamped() {
+        DeviceLatencyProfile fast = new DeviceLatencyProfile(false);
+        fast.onResponse(10);
+        assertEquals(DeviceLatencyProfile.MIN_TIMEOUT, fast.getTimeout());
+
+        DeviceLatencyProfile slow = new DeviceLatencyProfile(false);
+        slow.onResponse(50000);
+        assertEquals(DeviceLatencyProfile.MAX_TIMEOUT, slow.getTimeout());
+    }
+
+    @Test
+    public void timeoutsBackOffUntilTheNextAnswer() {
+        DeviceLatencyProfile profile = new DeviceLatencyProfile(false);
+        profile.onResponse(1000);
+        profile.onTimeout();
+        assertEquals(6000, profile.getTimeout());
+        profile.onTimeout();
+        assertEquals(12000, profile.getTimeout());
+        for (int i = 0; i < 10; i++) {
+            profile.onTimeout();
+        }
+        assertEquals(DeviceLatencyProfile.MAX_TIMEOUT, profile.getTimeout());
+
+        // An answer recomputes the timeout from the estimator
+        profile.onResponse(1000);
+        assertEquals(1000 + 4 * 375, profile.getTimeout());
+    }
+
+    @Test
+    public void retryBudgetShrinksWithConsecutiveTimeouts() {
+        DeviceLatencyProfile profile = new DeviceLatencyProfile(false);
+        profile.onTimeout();
+        assertEquals(1, profile.getRetryBudget());
+        profile.onTimeout();
+        assertEquals(1, profile.getRetryBudget());
+        profile.onTimeout();
+        assertEquals(0, profile.getRetryBudget());
+
+        profile.onSeen();
+        assertEquals(2, profile.getRetryBudget());
+    }
+
+    @Test
+    public void onlyQueueModeDevicesSleep() throws Exception {
+        DeviceLatencyProfile always = new DeviceLatencyProfile(false);
+        DeviceLatencyProfile queued = new DeviceLatencyProfile(true);
+        Thread.sleep(20);
+        assertTrue(always.isAwake(10));
+        assertFalse(queued.isAwake(10));
+        queued.onSeen();
+        assertTrue(queued.isAwake(10000));
+    }
+}
@@ -0,0 +1,97 @@
+package org.cpqd.iotagent;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class EventDispatcherTest {
+
+    @Test
+    public void keepsTheOrderOfEachDevice() throws Exception {
+        EventDispatcher dispatcher = new EventDispatcher("test-lane", 4, 16);
+        Map<String, List<Integer>> seen = new HashMap<>();
+        String[] devices = {"a", "b", "c", "d", "e", "f", "g"};
+        for (String device : devices) {
+            seen.put(device, Collections.synchronizedList(new ArrayList<>()));
+        }
+
+        for (int i = 0; i < 500; i++) {
+            for (String device : devices) {
+                int sequence = i;
+                dispatcher.dispatch(device, () -> seen.get(device).add(sequence));
+            }
+        }
+        dispatcher.drain(5000);
+
+        for (String device : devices) {
+            List<Integer> events = seen.get(device);
+            assertEquals(500, events.size());
+            for (int i = 0; i < events.size(); i++) {
+                assertEquals(device, i, (long) events.get(i));
+            }
+        }
+        assertEquals(0, dispatcher.getLag());
+        assertEquals(500 * devices.length, dispatcher.getProcessedCount());
+    }
+
+    @Test
+    public void failingEventDoesNotStopTheLane() throws Exception {
+        EventDispatcher dispatcher = new EventDispatcher("test-lane", 1, 4);
+        CountDownLatch after = new CountDownLatch(1);
+        dispatcher.dispatch("a", () -> {
+            throw new IllegalStateException("boom");
+        });
+        dispatcher.dispatch("a", after::countDown);
+
+        assertTrue(after.await(5, TimeUnit.SECONDS));
+        dispatcher.drain(5000);
+        assertEquals(0, dispatcher.getLag());
+    }
+
+    @Test(timeout = 10000)
+    public void dropsEventsOnceDrained() throws Exception {
+        EventDispatcher dispatcher = new EventDispatcher("test-lane", 1, 1);
+        dispatcher.drain(5000);
+
+        // Must neither block nor throw on the consumer thread
+        dispatcher.dispatch("a", () -> {
+        });
+        assertEquals(0, dispatcher.getLag());
+    }
+
+    @Test(timeout = 10000)
+    public void fullLaneBlocksUntilDrainingStarts() throws Exception {
+        EventDispatcher dispatcher = new EventDispatcher("test-lane", 1, 1);
+        CountDownLatch release = new CountDownLatch(1);
+        dispatcher.dispatch("a", () -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        // Fills the queue, the lane worker is busy with the first event
+        dispatcher.dispatch("a", () -> {
+        });
+
+        Thread producer = new Thread(() -> dispatcher.dispatch("a", () -> {
+        }));
+        producer.start();
+        producer.join(300);
+        assertTrue("the producer waits for room in the lane", producer.isAlive());
+
+        dispatcher.drain(0);
+        producer.join(5000);
+        assertTrue("the producer gives up once the lane is drained", !producer.isAlive());
+        release.countDown();
+    }
+}
@@ -0,0 +1,206 @@
+package org.cpqd.iotagent;
+
+import org.eclipse.leshan.core.model.LwM2mModel;
+import org.eclipse.leshan.core.model.ObjectLoader;
+import org.eclipse.leshan.core.model.ObjectModel;
+import org.eclipse.leshan.core.model.ResourceModel;
+import org.eclipse.leshan.core.model.StaticModel;
+import org.eclipse.leshan.core.node.LwM2mNode;
+import org.eclipse.leshan.core.node.LwM2mObjectInstance;
+import org.eclipse.leshan.core.node.LwM2mPath;
+import org.eclipse.leshan.core.node.LwM2mResource;
+import org.eclipse.leshan.core.node.LwM2mSingleResource;
+import org.eclipse.leshan.core.node.TimestampedLwM2mNode;
+import org.eclipse.leshan.core.node.codec.CodecException;
+import org.eclipse.leshan.core.node.codec.DefaultLwM2mNodeDecoder;
+import org.eclipse.leshan.core.node.codec.DefaultLwM2mNodeEncoder;
+import org.eclipse.leshan.core.node.codec.LwM2mNodeDecoder;
+import org.eclipse.leshan.core.request.ContentFormat;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FastNodeDecoderTest {
+    private LwM2mModel model;
+    private CountingDecoder fallback;
+    private FastNodeDecoder decoder;
+
+    // Counts what the fast path hands over to the default decoder
+    private static class CountingDecoder implements LwM2mNodeDecoder {
+        final LwM2mNodeDecoder decoder = new DefaultLwM2mNodeDecoder();
+        int calls;
+
+        @Override
+        public LwM2mNode decode(byte[] content, ContentFormat format, LwM2mPath path, LwM2mModel model)
+                throws CodecException {
+            calls++;
+            return decoder.decode(content, format, path, model);
+        }
+
+        @Override
+        public <T extends LwM2mNode> T decode(byte[] content, ContentFormat format, LwM2mPath path, LwM2mModel model,
+                                              Class<T> nodeClass) throws CodecException {
+            calls++;
+            return decoder.decode(content, format, path, model, nodeClass);
+        }
+
+        @Override
+        public List<TimestampedLwM2mNode> decodeTimestampedData(byte[] content, ContentFormat format, LwM2mPath path,
+                                                                LwM2mModel model) throws CodecException {
+            calls++;
+            return decoder.decodeTimestampedData(content, format, path, model);
+        }
+
+        @Override
+        public boolean isSupported(ContentFormat format) {
+            return decoder.isSupported(format);
+        }
+    }
+
+    @Before
+    public void setUp() {
+        // OMA objects plus the IPSO temperature sensor
+        List<ObjectModel> objects = new ArrayList<>(ObjectLoader.loadDefault());
+        objects.add(new ObjectModel(3303, "Temperature", "", "1.0", true, false, Collections.singletonList(
+                new ResourceModel(5700, "Sensor Value", ResourceModel.Operations.R, false, true,
+                        ResourceModel.Type.FLOAT, "", "Cel", ""))));
+        model = new StaticModel(objects);
+        fallback = new CountingDecoder();
+        decoder = new FastNodeDecoder(fallback);
+    }
+
+    private LwM2mNode decode(byte[] content, ContentFormat format, LwM2mPath path) {
+        return decoder.decode(content, format, path, model);
+    }
+
+    private static byte[] bytes(int... values) {
+        byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            bytes[i] = (byte) values[i];
+        }
+        return bytes;
+    }
+
+    @Test
+    public void decodesTlvIntegers() {
+        // Resource with value, 8 bit id (9), 1 byte length in the header
+        LwM2mNode node = decode(bytes(0xC1, 0x09, 0x64), ContentFormat.TLV, new LwM2mPath(3, 0, 9));
+        assertEquals(LwM2mSingleResource.newIntegerResource(9, 100), node);
+
+        node = decode(bytes(0xC2, 0x09, 0xFF, 0x38), ContentFormat.TLV, new LwM2mPath(3, 0, 9));
+        assertEquals(LwM2mSingleResource.newIntegerResource(9, -200), node);
+
+        node = decode(bytes(0xC4, 0x09, 0x00, 0x01, 0x00, 0x00), ContentFormat.TLV, new LwM2mPath(3, 0, 9));
+        assertEquals(LwM2mSingleResource.newIntegerResource(9, 65536), node);
+        assertEquals(0, fallback.calls);
+    }
+
+    @Test
+    public void decodesTlvWithLongIdAndLengthField() {
+        // 16 bit id (5700), length in the following byte, 8 byte double
+        long bits = Double.doubleToLongBits(21.5);
+        byte[] content = new byte[12];
+        content[0] = (byte) 0xE8;
+        content[1] = 0x16;
+        content[2] = 0x44;
+        content[3] = 8;
+        for (int i = 0; i < 8; i++) {
+            content[4 + i] = (byte) (bits >>> (56 - 8 * i));
+        }
+        LwM2mNode node = decode(content, ContentFormat.TLV, new LwM2mPath(3303, 0, 5700));
+        assertEquals(LwM2mSingleResource.newFloatResource(5700, 21.5), node);
+        assertEquals(0, fallback.calls);
+    }
+
+    @Test
+    public void decodesTlvFloatOfFourBytes() {
+        int bits = Float.floatToIntBits(1.5f);
+        LwM2mNode node = decode(bytes(0xE4, 0x16, 0x44, bits >>> 24, bits >>> 16, bits >>> 8, bits),
+                ContentFormat.TLV, new LwM2mPath(3303, 0, 5700));
+        assertEquals(LwM2mSingleResource.newFloatResource(5700, 1.5), node);
+    }
+
+    @Test
+    public void decodesTlvStringsBooleansAndOpaque() {
+        byte[] text = "cpqd".getBytes(StandardCharsets.UTF_8);
+        LwM2mNode node = decode(bytes(0xC4, 0x00, text[0], text[1], text[2], text[3]), ContentFormat.TLV,
+                new LwM2mPath(3, 0, 0));
+        assertEquals(LwM2mSingleResource.newStringResource(0, "cpqd"), node);
+
+        node = decode(bytes(0xC1, 0x06, 0x01), ContentFormat.TLV, new LwM2mPath(1, 0, 6));
+        assertEquals(LwM2mSingleResource.newBooleanResource(6, true), node);
+
+        node = decode(bytes(0xC3, 0x00, 0x01, 0x02, 0x03), ContentFormat.TLV, new LwM2mPath(5, 0, 0));
+        assertArrayEquals(bytes(0x01, 0x02, 0x03), (byte[]) ((LwM2mResource) node).getValue());
+        assertEquals(0, fallback.calls);
+    }
+
+    @Test
+    public void decodesTlvTime() {
+        LwM2mNode node = decode(bytes(0xC4, 0x0D, 0x5A, 0x98, 0x4C, 0x00), ContentFormat.TLV, new LwM2mPath(3, 0, 13));
+        assertEquals(LwM2mSingleResource.newDateResource(13, new Date(0x5A984C00L * 1000)), node);
+    }
+
+    @Test
+    public void matchesTheDefaultDecoder() {
+        DefaultLwM2mNodeEncoder encoder = new DefaultLwM2mNodeEncoder();
+        LwM2mNodeDecoder reference = new DefaultLwM2mNodeDecoder();
+        LwM2mSingleResource[] resources = {
+                LwM2mSingleResource.newIntegerResource(9, 42),
+                LwM2mSingleResource.newIntegerResource(9, Long.MIN_VALUE),
+                LwM2mSingleResource.newStringResource(0, "manufacturer"),
+                LwM2mSingleResource.newFloatResource(5700, -12.25)
+        };
+        LwM2mPath[] paths = {new LwM2mPath(3, 0, 9), new LwM2mPath(3, 0, 9), new LwM2mPath(3, 0, 0),
+                new LwM2mPath(3303, 0, 5700)};
+        for (ContentFormat format : new ContentFormat[]{ContentFormat.TLV, ContentFormat.TEXT}) {
+            for (int i = 0; i < resources.length; i++) {
+                byte[] content = encoder.encode(resources[i], format, paths[i], model);
+                assertEquals(reference.decode(content, format, paths[i], model), decode(content, format, paths[i]));
+            }
+        }
+        assertEquals(0, fallback.calls);
+    }
+
+    @Test
+    public void leavesOtherPayloadsToTheDefaultDecoder() {
+        // Wrong resource id
+        decode(bytes(0xC1, 0x0A, 0x64), ContentFormat.TLV, new LwM2mPath(3, 0, 9));
+        assertEquals(1, fallback.calls);
+
+        // Object instance
+        LwM2mObjectInstance instance = new LwM2mObjectInstance(0, LwM2mSingleResource.newIntegerResource(9, 42));
+        byte[] content = new DefaultLwM2mNodeEncoder().encode(instance, ContentFormat.TLV, new LwM2mPath(3, 0), model);
+        assertEquals(instance, decode(content, ContentFormat.TLV, new LwM2mPath(3, 0)));
+        assertEquals(2, fallback.calls);
+
+        // Invalid integer length, the default decoder reports it
+        try {
+            decode(bytes(0xC3, 0x09, 0x01, 0x02, 0x03), ContentFormat.TLV, new LwM2mPath(3, 0, 9));
+        } catch (CodecException e) {
+            // expected
+        }
+        assertEquals(3, fallback.calls);
+    }
+
+    @Test
+    public void decodesText() {
+        LwM2mNode node = decode("37".getBytes(StandardCharsets.UTF_8), ContentFormat.TEXT, new LwM2mPath(3, 0, 9));
+        assertEquals(LwM2mSingleResource.newIntegerResource(9, 37), node);
+
+        node = decode("0".getBytes(StandardCharsets.UTF_8), ContentFormat.TEXT, new LwM2mPath(1, 0, 6));
+        assertEquals(LwM2mSingleResource.newBooleanResource(6, false), node);
+        assertEquals(0, fallback.calls);
+
+        assertTrue(decoder.isSupported(ContentFormat.TLV));
+    }
+}
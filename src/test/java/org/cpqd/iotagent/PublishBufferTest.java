@@ -0,0 +1,143 @@
+package org.cpqd.iotagent;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PublishBufferTest {
+
+    // Publisher that can be held, to let the buffer fill up as if kafka were slow
+    private static class HeldPublisher implements AttributePublisher {
+        final List<Object[]> published = new ArrayList<>();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        @Override
+        public void publish(String deviceId, String service, JSONObject attrs) {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            synchronized (published) {
+                published.add(new Object[]{deviceId, attrs});
+            }
+        }
+
+        List<Object[]> getPublished() {
+            synchronized (published) {
+                return new ArrayList<>(published);
+            }
+        }
+    }
+
+    private static JSONObject attrs(Object... labelsAndValues) {
+        JSONObject attrs = new JSONObject();
+        for (int i = 0; i < labelsAndValues.length; i += 2) {
+            attrs.put((String) labelsAndValues[i], labelsAndValues[i + 1]);
+        }
+        return attrs;
+    }
+
+    private static void assertPublished(Object[] update, String deviceId, Object... labelsAndValues) {
+        assertEquals(deviceId, update[0]);
+        JSONObject attrs = (JSONObject) update[1];
+        assertEquals(labelsAndValues.length / 2, attrs.length());
+        for (int i = 0; i < labelsAndValues.length; i += 2) {
+            assertEquals(labelsAndValues[i + 1], attrs.get((String) labelsAndValues[i]));
+        }
+    }
+
+    @Test
+    public void publishesUpdatesAsTheyCome() throws Exception {
+        HeldPublisher publisher = new HeldPublisher();
+        publisher.release.countDown();
+        PublishBuffer buffer = new PublishBuffer(publisher, 100);
+
+        buffer.publish("a", "admin", attrs("temperature", 20));
+        buffer.publish("b", "admin", attrs("temperature", 21));
+        buffer.drain(5000);
+
+        List<Object[]> published = publisher.getPublished();
+        assertEquals(2, published.size());
+        assertPublished(published.get(0), "a", "temperature", 20);
+        assertPublished(published.get(1), "b", "temperature", 21);
+    }
+
+    @Test
+    public void mergesWaitingUpdatesOfADevice() throws Exception {
+        HeldPublisher publisher = new HeldPublisher();
+        PublishBuffer buffer = new PublishBuffer(publisher, 100);
+
+        // The first update holds the drain thread, the next ones wait in the buffer
+        buffer.publish("a", "admin", attrs("temperature", 20));
+        assertTrue(publisher.started.await(5, TimeUnit.SECONDS));
+        buffer.publish("b", "admin", attrs("humidity", 40));
+        buffer.publish("a", "admin", attrs("temperature", 21, "battery", 90));
+        buffer.publish("a", "admin", attrs("temperature", 22));
+        assertEquals(3, buffer.size());
+
+        publisher.release.countDown();
+        buffer.drain(5000);
+
+        List<Object[]> published = publisher.getPublished();
+        assertEquals(3, published.size());
+        assertPublished(published.get(0), "a", "temperature", 20);
+        // Devices keep the order of their first waiting update, values the newest one
+        assertPublished(published.get(1), "b", "humidity", 40);
+        assertPublished(published.get(2), "a", "temperature", 22, "battery", 90);
+        assertEquals(0, buffer.size());
+    }
+
+    @Test
+    public void dropsTheOldestDevicesWhenFull() throws Exception {
+        HeldPublisher publisher = new HeldPublisher();
+        PublishBuffer buffer = new PublishBuffer(publisher, 3);
+
+        buffer.publish("held", "admin", attrs("temperature", 20));
+        assertTrue(publisher.started.await(5, TimeUnit.SECONDS));
+        buffer.publish("a", "admin", attrs("temperature", 1, "battery", 90));
+        buffer.publish("b", "admin", attrs("temperature", 2));
+        assertEquals(3, buffer.size());
+        buffer.publish("c", "admin", attrs("temperature", 3));
+        assertEquals(2, buffer.size());
+
+        publisher.release.countDown();
+        buffer.drain(5000);
+
+        List<Object[]> published = publisher.getPublished();
+        assertEquals(3, published.size());
+        assertPublished(published.get(1), "b", "temperature", 2);
+        assertPublished(published.get(2), "c", "temperature", 3);
+    }
+
+    @Test
+    public void keepsDrainingAfterAFailure() throws Exception {
+        List<String> published = new ArrayList<>();
+        PublishBuffer buffer = new PublishBuffer((deviceId, service, attrs) -> {
+            if (deviceId.equals("bad")) {
+                throw new IllegalStateException("boom");
+            }
+            synchronized (published) {
+                published.add(deviceId);
+            }
+        }, 100);
+
+        buffer.publish("bad", "admin", attrs("temperature", 1));
+        buffer.publish("good", "admin", attrs("temperature", 2));
+        buffer.drain(5000);
+
+        synchronized (published) {
+            assertEquals(1, published.size());
+            assertEquals("good", published.get(0));
+        }
+    }
+}
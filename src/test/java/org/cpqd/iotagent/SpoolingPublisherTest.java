@@ -0,0 +1,133 @@
+package org.cpqd.iotagent;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SpoolingPublisherTest {
+    private File dir;
+
+    // Kafka stand-in that can go down, refusing every update while it is
+    private static class FlakyPublisher implements AttributePublisher {
+        final List<Long> published = new ArrayList<>();
+        volatile boolean healthy;
+        volatile boolean failing;
+
+        @Override
+        public void publish(String deviceId, String service, JSONObject attrs) {
+            if (failing) {
+                throw new IllegalStateException("kafka is down");
+            }
+            synchronized (published) {
+                published.add((Long) attrs.get("sequence"));
+            }
+        }
+
+        @Override
+        public boolean isHealthy() {
+            return healthy;
+        }
+
+        List<Long> getPublished() {
+            synchronized (published) {
+                return new ArrayList<>(published);
+            }
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("spool").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private static void publish(AttributePublisher publisher, long from, long to) {
+        for (long i = from; i < to; i++) {
+            publisher.publish("device-" + (i % 7), "admin", new JSONObject().put("sequence", i));
+        }
+    }
+
+    private static void awaitPublished(FlakyPublisher kafka, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (kafka.getPublished().size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void spoolsDuringAnOutageAndReplaysInOrder() throws Exception {
+        // Small segments, the backlog spans dozens of them
+        TelemetrySpool spool = new TelemetrySpool(dir, 256, 10000, 0);
+        FlakyPublisher kafka = new FlakyPublisher();
+        kafka.healthy = true;
+        SpoolingPublisher publisher = new SpoolingPublisher(kafka, spool, 100000);
+
+        publish(publisher, 0, 10);
+        assertEquals(10, kafka.getPublished().size());
+
+        // Sends fail before the publisher knows it is down, then it reports the outage
+        kafka.failing = true;
+        publish(publisher, 10, 20);
+        kafka.healthy = false;
+        publish(publisher, 20, 500);
+        assertEquals(10, kafka.getPublished().size());
+        assertEquals(490, spool.getPending());
+        assertTrue(dir.listFiles().length > 10);
+
+        // Back up, updates keep coming during the replay
+        kafka.failing = false;
+        kafka.healthy = true;
+        publish(publisher, 500, 600);
+        awaitPublished(kafka, 600);
+        publish(publisher, 600, 650);
+        awaitPublished(kafka, 650);
+
+        List<Long> published = kafka.getPublished();
+        assertEquals(650, published.size());
+        for (int i = 0; i < published.size(); i++) {
+            assertEquals(i, (long) published.get(i));
+        }
+        assertTrue(spool.isEmpty());
+    }
+
+    @Test
+    public void failedReplayIsRetried() throws Exception {
+        TelemetrySpool spool = new TelemetrySpool(dir, 256, 10000, 0);
+        FlakyPublisher kafka = new FlakyPublisher();
+        SpoolingPublisher publisher = new SpoolingPublisher(kafka, spool, 100000);
+        publish(publisher, 0, 50);
+
+        // Reported healthy too early, the first replay attempts fail
+        kafka.failing = true;
+        kafka.healthy = true;
+        Thread.sleep(300);
+        assertEquals(50, spool.getPending());
+        kafka.failing = false;
+        awaitPublished(kafka, 50);
+
+        List<Long> published = kafka.getPublished();
+        assertEquals(50, published.size());
+        for (int i = 0; i < published.size(); i++) {
+            assertEquals(i, (long) published.get(i));
+        }
+    }
+}
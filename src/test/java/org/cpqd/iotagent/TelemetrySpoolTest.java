@@ -0,0 +1,158 @@
+package org.cpqd.iotagent;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TelemetrySpoolTest {
+    // Room for a handful of records per segment, so tests go through many segments
+    private static final int SEGMENT_SIZE = 256;
+
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("spool").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private static JSONObject attrs(long sequence) {
+        return new JSONObject().put("sequence", sequence).put("temperature", 21.5).put("on", true)
+                .put("unit", "Cel");
+    }
+
+    @Test
+    public void replaysInOrderAcrossSegments() throws Exception {
+        TelemetrySpool spool = new TelemetrySpool(dir, SEGMENT_SIZE, 1000, 0);
+        for (long i = 0; i < 200; i++) {
+            spool.append("device-" + (i % 3), "admin", attrs(i));
+        }
+        assertEquals(200, spool.getPending());
+        assertTrue(dir.listFiles().length > 10);
+
+        for (long i = 0; i < 200; i++) {
+            TelemetrySpool.Record record = spool.peek();
+            assertEquals("device-" + (i % 3), record.deviceId);
+            assertEquals("admin", record.service);
+            assertEquals(i, record.attrs.get("sequence"));
+            assertEquals(21.5, record.attrs.get("temperature"));
+            assertEquals(Boolean.TRUE, record.attrs.get("on"));
+            assertEquals("Cel", record.attrs.get("unit"));
+            spool.commit(record);
+        }
+        assertNull(spool.peek());
+        assertTrue(spool.isEmpty());
+    }
+
+    @Test
+    public void peekWithoutCommitReturnsTheSameRecord() throws Exception {
+        TelemetrySpool spool = new TelemetrySpool(dir, SEGMENT_SIZE, 1000, 0);
+        spool.append("a", "admin", attrs(1));
+        spool.append("a", "admin", attrs(2));
+
+        assertEquals(1L, spool.peek().attrs.get("sequence"));
+        TelemetrySpool.Record record = spool.peek();
+        assertEquals(1L, record.attrs.get("sequence"));
+        spool.commit(record);
+        // A second commit of the same record does not skip the next one
+        spool.commit(record);
+        assertEquals(2L, spool.peek().attrs.get("sequence"));
+    }
+
+    @Test
+    public void commitAfterTheSegmentWasDroppedKeepsTheNextRecord() throws Exception {
+        TelemetrySpool spool = new TelemetrySpool(dir, SEGMENT_SIZE, 2, 0);
+        spool.append("a", "admin", attrs(0));
+        TelemetrySpool.Record replaying = spool.peek();
+
+        // Fills the spool until the segment being replayed is dropped
+        long sequence = 1;
+        while (spool.getPending() >= sequence - 1 || sequence < 3) {
+            spool.append("a", "admin", attrs(sequence++));
+        }
+        TelemetrySpool.Record head = spool.peek();
+        long pending = spool.getPending();
+
+        spool.commit(replaying);
+        assertEquals(pending, spool.getPending());
+        assertEquals(head.attrs.get("sequence"), spool.peek().attrs.get("sequence"));
+    }
+
+    @Test
+    public void resumesAfterARestart() throws Exception {
+        TelemetrySpool spool = new TelemetrySpool(dir, SEGMENT_SIZE, 1000, 0);
+        for (long i = 0; i < 50; i++) {
+            spool.append("a", "admin", attrs(i));
+        }
+        for (long i = 0; i < 20; i++) {
+            spool.commit(spool.peek());
+        }
+        spool.flush();
+
+        TelemetrySpool resumed = new TelemetrySpool(dir, SEGMENT_SIZE, 1000, 0);
+        assertEquals(30, resumed.getPending());
+        for (long i = 20; i < 50; i++) {
+            TelemetrySpool.Record record = resumed.peek();
+            assertEquals(i, record.attrs.get("sequence"));
+            resumed.commit(record);
+        }
+        assertTrue(resumed.isEmpty());
+    }
+
+    @Test
+    public void resumesWithADifferentSegmentSize() throws Exception {
+        TelemetrySpool spool = new TelemetrySpool(dir, SEGMENT_SIZE, 1000, 0);
+        for (long i = 0; i < 10; i++) {
+            spool.append("a", "admin", attrs(i));
+        }
+        spool.flush();
+
+        // Larger segments now, the recovered tail keeps its own size
+        TelemetrySpool larger = new TelemetrySpool(dir, SEGMENT_SIZE * 16, 1000, 0);
+        for (long i = 10; i < 100; i++) {
+            larger.append("a", "admin", attrs(i));
+        }
+        larger.flush();
+
+        TelemetrySpool smaller = new TelemetrySpool(dir, SEGMENT_SIZE, 1000, 0);
+        for (long i = 100; i < 120; i++) {
+            smaller.append("a", "admin", attrs(i));
+        }
+        assertEquals(120, smaller.getPending());
+        for (long i = 0; i < 120; i++) {
+            TelemetrySpool.Record record = smaller.peek();
+            assertEquals(i, record.attrs.get("sequence"));
+            smaller.commit(record);
+        }
+        assertTrue(smaller.isEmpty());
+    }
+
+    @Test
+    public void skipsExpiredRecords() throws Exception {
+        TelemetrySpool spool = new TelemetrySpool(dir, SEGMENT_SIZE, 1000, 50);
+        spool.append("a", "admin", attrs(1));
+        Thread.sleep(100);
+        spool.append("a", "admin", attrs(2));
+
+        assertEquals(2L, spool.peek().attrs.get("sequence"));
+        assertEquals(1, spool.getPending());
+    }
+}
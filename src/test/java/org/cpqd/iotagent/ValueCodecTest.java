@@ -0,0 +1,76 @@
+package org.cpqd.iotagent;
+
+import org.eclipse.leshan.core.model.ResourceModel;
+import org.eclipse.leshan.core.node.LwM2mMultipleResource;
+import org.eclipse.leshan.core.node.LwM2mObjectInstance;
+import org.eclipse.leshan.core.node.LwM2mSingleResource;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class ValueCodecTest {
+
+    @Test
+    public void convertsDojotValuesToTheResourceType() {
+        assertEquals(42L, ValueCodec.fromJson(ResourceModel.Type.INTEGER, 42));
+        assertEquals(42L, ValueCodec.fromJson(ResourceModel.Type.INTEGER, "42"));
+        assertEquals(2.5, ValueCodec.fromJson(ResourceModel.Type.FLOAT, 2.5));
+        assertEquals(3.0, ValueCodec.fromJson(ResourceModel.Type.FLOAT, 3));
+        assertEquals(2.5, ValueCodec.fromJson(ResourceModel.Type.FLOAT, "2.5"));
+        assertEquals(true, ValueCodec.fromJson(ResourceModel.Type.BOOLEAN, true));
+        assertEquals(false, ValueCodec.fromJson(ResourceModel.Type.BOOLEAN, "false"));
+        assertEquals("on", ValueCodec.fromJson(ResourceModel.Type.STRING, "on"));
+        assertEquals("12", ValueCodec.fromJson(ResourceModel.Type.STRING, 12));
+        assertEquals(new Date(1530000000000L), ValueCodec.fromJson(ResourceModel.Type.TIME, 1530000000));
+        assertArrayEquals(new byte[]{0x01, (byte) 0xAB}, (byte[]) ValueCodec.fromJson(ResourceModel.Type.OPAQUE, "01ab"));
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void rejectsValuesThatAreNotOfTheType() {
+        ValueCodec.fromJson(ResourceModel.Type.INTEGER, "on");
+    }
+
+    @Test
+    public void publishesResourceValues() {
+        assertEquals(42L, ValueCodec.toJson(LwM2mSingleResource.newIntegerResource(9, 42)));
+        assertEquals(21.5, ValueCodec.toJson(LwM2mSingleResource.newFloatResource(5700, 21.5)));
+        assertEquals("Cel", ValueCodec.toJson(LwM2mSingleResource.newStringResource(5701, "Cel")));
+        assertEquals("01ab", ValueCodec.toJson(LwM2mSingleResource.newBinaryResource(0, new byte[]{0x01, (byte) 0xAB})));
+        assertSame(JSONObject.NULL, ValueCodec.toJson(ResourceModel.Type.STRING, null));
+    }
+
+    @Test
+    public void publishesMultipleResourcesByInstanceId() {
+        Map<Integer, Long> values = new HashMap<>();
+        values.put(0, 1L);
+        values.put(3, 7L);
+        JSONObject json = (JSONObject) ValueCodec.toJson(
+                LwM2mMultipleResource.newIntegerResource(6, values));
+        assertEquals(2, json.length());
+        assertEquals(1L, json.get("0"));
+        assertEquals(7L, json.get("3"));
+    }
+
+    @Test
+    public void roundTripsTime() {
+        Date date = new Date(1530000000000L);
+        String published = (String) ValueCodec.toJson(LwM2mSingleResource.newDateResource(13, date));
+        // ISO 8601 with the offset of the agent time zone
+        assertEquals(date.toInstant(), java.time.OffsetDateTime.parse(published).toInstant());
+    }
+
+    @Test
+    public void onlyResourcesHaveAValue() {
+        assertNull(ValueCodec.toJson(new LwM2mObjectInstance(0, LwM2mSingleResource.newIntegerResource(9, 42))));
+        assertEquals("", ValueCodec.toText(null));
+        assertEquals("1.0.0", ValueCodec.toText(LwM2mSingleResource.newStringResource(3, "1.0.0")));
+    }
+}
@@ -0,0 +1,158 @@
+package org.cpqd.iotagent;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class WindowAggregatorTest {
+    // Templates are registered globally, each test uses its own
+    private static final AtomicInteger templateIds = new AtomicInteger(100);
+
+    private static class RecordingPublisher implements AttributePublisher {
+        final List<JSONObject> published = new ArrayList<>();
+
+        @Override
+        public synchronized void publish(String deviceId, String service, JSONObject attrs) {
+            published.add(attrs);
+        }
+
+        synchronized List<JSONObject> getPublished() {
+            return new ArrayList<>(published);
+        }
+    }
+
+    private static JSONObject attribute(String templateId, String label, String type, String valueType) {
+        return new JSONObject().put("label", label).put("type", type).put("value_type", valueType)
+                .put("template_id", templateId);
+    }
+
+    private static JSONArray template(String templateId, String functions, String window, String serial) {
+        JSONArray metadata = new JSONArray()
+                .put(new JSONObject().put("label", "aggregation").put("type", "meta").put("static_value", functions))
+                .put(new JSONObject().put("label", "aggregation_window").put("type", "meta")
+                        .put("static_value", window));
+        return new JSONArray()
+                .put(attribute(templateId, "temperature", "dynamic", "float").put("metadata", metadata))
+                .put(attribute(templateId, "count", "dynamic", "integer").put("metadata", metadata))
+                .put(attribute(templateId, "status", "dynamic", "string"))
+                .put(attribute(templateId, "serial", "static", "string").put("static_value", serial));
+    }
+
+    private static Device device(String templateId, JSONArray attrs) {
+        return new Device(new JSONObject().put("label", "sensor").put("id", "a1b2c3")
+                .put("attrs", new JSONObject().put(templateId, attrs)));
+    }
+
+    private static JSONObject payload(Object temperature) {
+        return new JSONObject().put("temperature", temperature);
+    }
+
+    @Test
+    public void foldsValuesUntilTheDeviceLeaves() {
+        String templateId = String.valueOf(templateIds.incrementAndGet());
+        Device device = device(templateId, template(templateId, "min,max,avg,count", "60", "s1"));
+        RecordingPublisher publisher = new RecordingPublisher();
+        WindowAggregator aggregator = new WindowAggregator(publisher);
+
+        JSONObject rest = aggregator.offer("a1b2c3", "admin", device,
+                payload(20.0).put("count", 3).put("status", "on"));
+        aggregator.offer("a1b2c3", "admin", device, payload(22.0).put("count", 5));
+        aggregator.offer("a1b2c3", "admin", device, payload(27.0));
+
+        assertFalse(rest.has("temperature"));
+        assertFalse(rest.has("count"));
+        assertEquals("on", rest.get("status"));
+        assertTrue(publisher.getPublished().isEmpty());
+        assertEquals(2, aggregator.getWindowCount());
+
+        aggregator.close("a1b2c3");
+        assertEquals(1, publisher.getPublished().size());
+        JSONObject summary = publisher.getPublished().get(0);
+        JSONObject temperature = summary.getJSONObject("temperature");
+        assertEquals(20.0, temperature.get("min"));
+        assertEquals(27.0, temperature.get("max"));
+        assertEquals(23.0, temperature.get("avg"));
+        assertEquals(3L, temperature.get("count"));
+        JSONObject count = summary.getJSONObject("count");
+        assertEquals(3L, count.get("min"));
+        assertEquals(5L, count.get("max"));
+        assertEquals(0, aggregator.getWindowCount());
+    }
+
+    @Test
+    public void publishesTheWindowItCloses() throws Exception {
+        String templateId = String.valueOf(templateIds.incrementAndGet());
+        Device device = device(templateId, template(templateId, "avg", "0.05", "s1"));
+        RecordingPublisher publisher = new RecordingPublisher();
+        WindowAggregator aggregator = new WindowAggregator(publisher);
+
+        aggregator.offer("a1b2c3", "admin", device, payload(10.0));
+        aggregator.offer("a1b2c3", "admin", device, payload(20.0));
+        Thread.sleep(120);
+        aggregator.offer("a1b2c3", "admin", device, payload(40.0));
+
+        assertEquals(1, publisher.getPublished().size());
+        assertEquals(15.0, publisher.getPublished().get(0).get("temperature"));
+    }
+
+    @Test
+    public void keepsTheWindowWhenTheDeviceIsFetchedAgain() {
+        String templateId = String.valueOf(templateIds.incrementAndGet());
+        Device device = device(templateId, template(templateId, "count", "60", "s1"));
+        RecordingPublisher publisher = new RecordingPublisher();
+        WindowAggregator aggregator = new WindowAggregator(publisher);
+        aggregator.offer("a1b2c3", "admin", device, payload(10.0));
+
+        // Same aggregation, but every attribute, policy included, parsed again
+        TemplateRegistry.replace(templateId, AttributeTable.fromTemplate(template(templateId, "count", "60", "s2")));
+        Device fetched = device(templateId, template(templateId, "count", "60", "s2"));
+        assertTrue(fetched.getAttribute("temperature").aggregation
+                != device.getAttribute("temperature").aggregation);
+        aggregator.offer("a1b2c3", "admin", fetched, payload(11.0));
+
+        assertTrue(publisher.getPublished().isEmpty());
+        aggregator.close("a1b2c3");
+        assertEquals(2L, publisher.getPublished().get(0).get("temperature"));
+    }
+
+    @Test
+    public void publishesWhatWasCollectedWhenThePolicyChanges() {
+        String templateId = String.valueOf(templateIds.incrementAndGet());
+        Device device = device(templateId, template(templateId, "max", "60", "s1"));
+        RecordingPublisher publisher = new RecordingPublisher();
+        WindowAggregator aggregator = new WindowAggregator(publisher);
+        aggregator.offer("a1b2c3", "admin", device, payload(10.0));
+        aggregator.offer("a1b2c3", "admin", device, payload(12.0));
+
+        TemplateRegistry.replace(templateId, AttributeTable.fromTemplate(template(templateId, "min", "60", "s1")));
+        Device updated = device(templateId, template(templateId, "min", "60", "s1"));
+        aggregator.offer("a1b2c3", "admin", updated, payload(30.0));
+
+        assertEquals(1, publisher.getPublished().size());
+        assertEquals(12.0, publisher.getPublished().get(0).get("temperature"));
+        aggregator.close("a1b2c3");
+        assertEquals(30.0, publisher.getPublished().get(1).get("temperature"));
+    }
+
+    @Test
+    public void publishesOtherValuesAsTheyCome() {
+        String templateId = String.valueOf(templateIds.incrementAndGet());
+        Device device = device(templateId, template(templateId, "avg", "60", "s1"));
+        WindowAggregator aggregator = new WindowAggregator(new RecordingPublisher());
+
+        JSONObject rest = aggregator.offer("a1b2c3", "admin", device,
+                payload("hot").put("status", "on").put("unknown", 1));
+        assertEquals("hot", rest.get("temperature"));
+        assertEquals("on", rest.get("status"));
+        assertEquals(1, rest.get("unknown"));
+        assertEquals(0, aggregator.getWindowCount());
+    }
+}